@@ -0,0 +1,37 @@
+package uio.bench;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import clojure.lang.Var;
+
+// Clojure interop shared by benchmarks
+class Clj {
+    static {
+        require("uio.uio");
+    }
+
+    static void require(String ns) {
+        Clojure.var("clojure.core", "require").invoke(Clojure.read(ns));
+    }
+
+    static IFn fn(String ns, String name) {
+        require(ns);
+        return Clojure.var(ns, name);
+    }
+
+    static Object read(String edn) {
+        return Clojure.read(edn);
+    }
+
+    // sets the root value of `uio.impl/*config*`, so it's visible from all benchmark threads
+    static void setConfig(String edn) {
+        ((Var) Clojure.var("uio.impl", "*config*")).bindRoot(read(edn));
+    }
+
+    static byte[] text(int size) {
+        StringBuilder sb = new StringBuilder(size + 16);
+        for (int i = 0; sb.length() < size; i++)
+            sb.append("line ").append(i).append(" of some moderately repetitive text\n");
+        return sb.substring(0, size).getBytes();
+    }
+}
@@ -0,0 +1,59 @@
+package uio.bench;
+
+import clojure.lang.IFn;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+// `apply-codecs` chains as used by `from*`/`to*`: encoding and decoding 4MB of text
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecsBench {
+    private static final IFn APPLY_CODECS = Clj.fn("uio.impl", "apply-codecs");
+    private static final IFn URL_EXT_CODECS = Clj.fn("uio.impl", "url->ext+s->s");
+    private static final IFn EXT_IS_IS = Clj.fn("uio.impl", "ext->is->is");
+    private static final IFn EXT_OS_OS = Clj.fn("uio.impl", "ext->os->os");
+
+    @Param({"gz", "bz2", "xz", "zst", "lz4", "snappy", "zst.gz"})
+    public String codecs;
+
+    private String url;
+    private byte[] bs;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws Exception {
+        url = "mem:///bench/file.txt." + codecs;
+        bs = Clj.text(4 * 1024 * 1024);
+        encoded = encode();
+    }
+
+    @Benchmark
+    public byte[] encode() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(bs.length);
+        try (OutputStream os = (OutputStream) APPLY_CODECS.invoke(baos, URL_EXT_CODECS.invoke(EXT_OS_OS, url))) {
+            os.write(bs);
+        }
+        return baos.toByteArray();
+    }
+
+    @Benchmark
+    public long decode() throws Exception {
+        byte[] buffer = new byte[64 * 1024];
+        long n = 0;
+        try (InputStream is = (InputStream) APPLY_CODECS.invoke(new ByteArrayInputStream(encoded),
+                                                                URL_EXT_CODECS.invoke(EXT_IS_IS, url))) {
+            for (int r; (r = is.read(buffer)) != -1; )
+                n += r;
+        }
+        return n;
+    }
+}
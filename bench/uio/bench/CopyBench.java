@@ -0,0 +1,81 @@
+package uio.bench;
+
+import clojure.lang.IFn;
+import org.apache.sshd.common.config.keys.PublicKeyEntry;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.subsystem.sftp.SftpSubsystemFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+// `copy` of a 16MB file between `mem`, `file` and an SFTP server on localhost
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyBench {
+    private static final IFn TO = Clj.fn("uio.uio", "to");
+    private static final IFn COPY = Clj.fn("uio.uio", "copy");
+
+    @Param({"mem->file", "file->mem", "file->file", "file->sftp", "sftp->file"})
+    public String route;
+
+    private SshServer sftp;
+    private Path dir;
+    private String from;
+    private String to;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("uio-copy-bench");
+        Files.createDirectories(dir.resolve("sftp"));
+
+        sftp = SshServer.setUpDefaultServer();
+        sftp.setPort(0);
+        sftp.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+        sftp.setPasswordAuthenticator((user, pass, session) -> "pass".equals(pass));
+        sftp.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+        sftp.setFileSystemFactory(new VirtualFileSystemFactory(dir.resolve("sftp")));
+        sftp.start();
+
+        String knownHosts = "[localhost]:" + sftp.getPort() + " " +
+                            PublicKeyEntry.toString(sftp.getKeyPairProvider().loadKeys().iterator().next().getPublic());
+        Clj.setConfig("{\"sftp://\" {:user \"bench\" :pass \"pass\" :known-hosts \"" + knownHosts + "\"}}");
+
+        String[] fromTo = route.split("->");
+        from = url(fromTo[0], "from.bin");
+        to = url(fromTo[1], "to.bin");
+
+        try (OutputStream os = (OutputStream) TO.invoke(from)) {
+            os.write(Clj.text(16 * 1024 * 1024));
+        }
+    }
+
+    private String url(String scheme, String name) {
+        switch (scheme) {
+            case "mem":  return "mem:///copy-bench/" + name;
+            case "file": return "file://" + dir + "/" + name;
+            case "sftp": return "sftp://localhost:" + sftp.getPort() + "/" + name;
+            default:     throw new IllegalArgumentException(scheme);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        sftp.stop(true);
+        Files.walk(dir).sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+    }
+
+    @Benchmark
+    public void copy() {
+        COPY.invoke(from, to);
+    }
+}
@@ -0,0 +1,65 @@
+package uio.bench;
+
+import clojure.lang.IFn;
+import clojure.lang.RT;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// `ls` over a tree of `files` files in directories of 100: a recursive listing of the tree, and a listing of one dir
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LsBench {
+    private static final IFn TO = Clj.fn("uio.uio", "to");
+    private static final IFn LS = Clj.fn("uio.uio", "ls");
+    private static final Object RECURSE = Clj.read("{:recurse true}");
+
+    @Param({"mem", "file"})
+    public String scheme;
+
+    @Param({"10000"})
+    public int files;
+
+    private String base;
+    private Path dir;
+
+    @Setup
+    public void setup() throws Exception {
+        if (scheme.equals("file")) {
+            dir = Files.createTempDirectory("uio-ls-bench");
+            base = "file://" + dir + "/";
+        } else
+            base = "mem:///ls-bench/";
+
+        for (int i = 0; i < files; i++) {
+            if (scheme.equals("file"))
+                Files.createDirectories(dir.resolve("d" + i / 100));
+            try (OutputStream os = (OutputStream) TO.invoke(base + "d" + i / 100 + "/f" + i + ".txt")) {
+                os.write('x');
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (dir != null)
+            Files.walk(dir).sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+    }
+
+    @Benchmark
+    public int lsRecursive() {
+        return RT.count(LS.invoke(base, RECURSE));
+    }
+
+    @Benchmark
+    public int lsDir() {
+        return RT.count(LS.invoke(base + "d" + (files / 200) + "/"));
+    }
+}
@@ -0,0 +1,39 @@
+package uio.bench;
+
+import org.openjdk.jmh.annotations.*;
+import uio.fs.S3;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+// Buffering and part hashing of `S3$S3OutputStream`: uploads 64MB to a local stand-in of S3
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class S3OutputStreamBench {
+    @Param({"1", "4"})
+    public int parallelism;
+
+    @Param({"8192", "1048576"})
+    public int writeSize;
+
+    private LocalS3Client c;
+    private byte[] bs;
+
+    @Setup
+    public void setup() {
+        c = new LocalS3Client();
+        bs = Clj.text(writeSize);
+    }
+
+    @Benchmark
+    public void upload() throws Exception {
+        try (OutputStream os = new S3.S3OutputStream(c, "bucket", "key", null, S3.S3OutputStream.MIN_PART_SIZE, parallelism)) {
+            for (long n = 0; n < 64 * 1024 * 1024; n += bs.length)
+                os.write(bs);
+        }
+    }
+}
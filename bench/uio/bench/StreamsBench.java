@@ -0,0 +1,67 @@
+package uio.bench;
+
+import org.openjdk.jmh.annotations.*;
+import uio.fs.Streams;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+// Overhead of `Streams` wrappers over reading/writing 1MB through a 64KB buffer
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamsBench {
+    @Param({"raw", "countable", "digestible", "take-n"})
+    public String wrapper;
+
+    private byte[] bs;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    @Setup
+    public void setup() {
+        bs = Clj.text(1024 * 1024);
+    }
+
+    private InputStream wrap(InputStream is) throws Exception {
+        switch (wrapper) {
+            case "raw":        return is;
+            case "countable":  return new Streams.CountableInputStream(is);
+            case "digestible": return new Streams.DigestibleInputStream("MD5", is);
+            case "take-n":     return new Streams.TakeNInputStream(bs.length, is);
+            default:           throw new IllegalArgumentException(wrapper);
+        }
+    }
+
+    private OutputStream wrap(OutputStream os) throws Exception {
+        switch (wrapper) {
+            case "raw":        return os;
+            case "countable":  return new Streams.CountableOutputStream(os);
+            case "digestible": return new Streams.DigestibleOutputStream("MD5", os);
+            case "take-n":     return os;                                    // input only
+            default:           throw new IllegalArgumentException(wrapper);
+        }
+    }
+
+    @Benchmark
+    public long read() throws Exception {
+        long n = 0;
+        try (InputStream is = wrap(new ByteArrayInputStream(bs))) {
+            for (int r; (r = is.read(buffer)) != -1; )
+                n += r;
+        }
+        return n;
+    }
+
+    @Benchmark
+    public void write() throws Exception {
+        try (OutputStream os = wrap(new Streams.NullOutputStream())) {
+            for (int off = 0; off < bs.length; off += buffer.length)
+                os.write(bs, off, Math.min(buffer.length, bs.length - off));
+        }
+    }
+}
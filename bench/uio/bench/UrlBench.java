@@ -0,0 +1,58 @@
+package uio.bench;
+
+import clojure.lang.IFn;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// URL parsing on the path of every call: dispatch, query strings and credentials lookup among `prefixes` config keys
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UrlBench {
+    private static final IFn TO_URI = Clj.fn("uio.impl", "->URI");
+    private static final IFn SCHEME_K = Clj.fn("uio.impl", "scheme-k");
+    private static final IFn QUERY_MAP = Clj.fn("uio.impl", "query-map");
+    private static final IFn URL_CREDS = Clj.fn("uio.impl", "url->creds'");
+
+    private static final String URL = "s3://bucket-7/path/to/some-dir/file.txt";
+    private static final String QUERY_URL = "sftp://host:22/path/to/file.txt?user=joe&pass=secret&known-hosts=none&a=1&a=2";
+
+    @Param({"1", "100"})
+    public int prefixes;
+
+    private Object config;
+    private Object env;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder("{\"s3://\" {:access \"a\" :secret \"s\"}");
+        for (int i = 1; i < prefixes; i++)
+            sb.append(" \"s3://bucket-").append(i).append("/\" {:access \"a").append(i).append("\" :secret \"s\"}");
+        config = Clj.read(sb.append("}").toString());
+        env = Clj.read("{}");
+    }
+
+    @Benchmark
+    public Object toUri() {
+        return TO_URI.invoke(URL);
+    }
+
+    @Benchmark
+    public Object schemeK() {
+        return SCHEME_K.invoke(URL);
+    }
+
+    @Benchmark
+    public Object queryMap() {
+        return QUERY_MAP.invoke(QUERY_URL);
+    }
+
+    @Benchmark
+    public Object urlToCreds() {
+        return URL_CREDS.invoke(config, env, URL);
+    }
+}
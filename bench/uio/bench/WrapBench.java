@@ -0,0 +1,86 @@
+package uio.bench;
+
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import org.openjdk.jmh.annotations.*;
+import uio.fs.Streams;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+// Overhead of `uio.impl/wrap-is` and `wrap-os` proxies: opening and closing, then reading/writing 1MB in 8KB calls
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WrapBench {
+    private static final IFn WRAP_IS = Clj.fn("uio.impl", "wrap-is");
+    private static final IFn WRAP_OS = Clj.fn("uio.impl", "wrap-os");
+
+    private static final IFn RESOURCE = new AFn() {
+        public Object invoke() {
+            return "resource";
+        }
+    };
+
+    private static final IFn CLOSE = new AFn() {
+        public Object invoke(Object resource) {
+            return null;
+        }
+    };
+
+    @Param({"false", "true"})
+    public boolean wrapped;
+
+    private byte[] bs;
+    private final byte[] buffer = new byte[8 * 1024];
+
+    @Setup
+    public void setup() {
+        bs = Clj.text(1024 * 1024);
+    }
+
+    private InputStream openIs() {
+        InputStream is = new ByteArrayInputStream(bs);
+        return wrapped
+                ? (InputStream) WRAP_IS.invoke(RESOURCE, new AFn() {
+                      public Object invoke(Object resource) {
+                          return is;
+                      }
+                  }, CLOSE)
+                : is;
+    }
+
+    private OutputStream openOs() {
+        OutputStream os = new Streams.NullOutputStream();
+        return wrapped
+                ? (OutputStream) WRAP_OS.invoke(RESOURCE, new AFn() {
+                      public Object invoke(Object resource) {
+                          return os;
+                      }
+                  }, CLOSE)
+                : os;
+    }
+
+    @Benchmark
+    public long read() throws Exception {
+        long n = 0;
+        try (InputStream is = openIs()) {
+            for (int r; (r = is.read(buffer)) != -1; )
+                n += r;
+        }
+        return n;
+    }
+
+    @Benchmark
+    public void write() throws Exception {
+        try (OutputStream os = openOs()) {
+            for (int off = 0; off < bs.length; off += buffer.length)
+                os.write(bs, off, buffer.length);
+        }
+    }
+}
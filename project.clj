@@ -21,6 +21,9 @@
 
                  [org.apache.commons/commons-compress "1.15"] ; bzip2, xz
                  [org.tukaani/xz "1.8"]                     ; xz (needed by `commons-compress`)
+                 [com.github.luben/zstd-jni "1.5.5-11"]     ; zst
+                 [org.lz4/lz4-java "1.8.0"]                 ; lz4
+                 [org.xerial.snappy/snappy-java "1.1.10.5"] ; snappy (also overrides 1.0.4.1 from `hadoop-common`)
 
                  [org.clojure/tools.cli "0.3.5"]]           ; main
 
@@ -31,10 +34,20 @@
   :javac-options ["-source" "1.8"
                   "-target" "1.8"]
 
-  :profiles {:dev {:dependencies [[midje "1.8.3"]]
-                   :plugins      [[lein-midje "3.2.1"]]}}
+  :profiles {:dev   {:dependencies [[midje "1.8.3"]]
+                     :plugins      [[lein-midje "3.2.1"]]}
 
-  :aot [uio.main.main]
+             ; JMH benchmarks in bench/, see README
+             :bench {:dependencies      [[org.openjdk.jmh/jmh-core "1.37"]
+                                         [org.openjdk.jmh/jmh-generator-annprocess "1.37"] ; generates benchmarks on `javac`
+                                         [org.apache.sshd/sshd-core "1.7.0"]]              ; SFTP server for `CopyBench`
+                     :java-source-paths ["src" "bench"]}}
+
+  ; e.g. `lein bench`, `lein bench CodecsBench -p codecs=gz,zst` -- results are saved to target/jmh-result.json
+  :aliases {"bench" ["with-profile" "+bench" "run" "-m" "org.openjdk.jmh.Main" "-rf" "json" "-rff" "target/jmh-result.json"]}
+
+  :aot [uio.main.main
+        #"uio\.(fs|codecs)\..*"]                     ; loaded on first use (see `uio.impl/implementations`), not by `uio.main.main`
   :main uio.main.main
 
   :uberjar-name "uio.jar"
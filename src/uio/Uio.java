@@ -1,16 +1,30 @@
 package uio;
 
 import clojure.java.api.Clojure;
+import clojure.lang.AFn;
 import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentVector;
 import clojure.lang.Keyword;
+import clojure.lang.PersistentHashMap;
+import clojure.lang.PersistentVector;
 
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Collections;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static clojure.java.api.Clojure.var;
 
@@ -25,9 +39,15 @@ public class Uio {
     private static final IFn SIZE   = var("uio.uio/size");
     private static final IFn EXISTS = var("uio.uio/exists?");
     private static final IFn DELETE = var("uio.uio/delete");
+    private static final IFn DELETE_M = var("uio.uio/delete-many");
+    private static final IFn DELETE_T = var("uio.uio/delete-tree");
+    private static final IFn EXISTS_M = var("uio.uio/exists-many");
+    private static final IFn SIZE_M   = var("uio.uio/size-many");
     private static final IFn COPY   = var("uio.uio/copy");
+    private static final IFn COPY_T = var("uio.uio/copy-tree");
     private static final IFn LS     = var("uio.uio/ls");
     private static final IFn MKDIR  = var("uio.uio/mkdir");
+    private static final IFn COLLECT_CLOSERS = var("uio.impl/collect-closers");
 
     public static InputStream       from(String url)                           { return (InputStream)   FROM.invoke(url); }
     public static InputStream       from(String url, Map<String, Object> opts) { return (InputStream)   FROM.invoke(url, s2o_k2o(opts)); }
@@ -36,37 +56,62 @@ public class Uio {
     public static InputStream decodeFrom(String url)                           { return (InputStream) FROM_S.invoke(url); }
     public static OutputStream  encodeTo(String url)                           { return (OutputStream)  TO_S.invoke(url); }
     public static OutputStream        to(String url)                           { return (OutputStream)    TO.invoke(url); }
-    public static long              size(String url)                           { return (long)          SIZE.invoke(url); }
+    public static long              size(String url)                           { return ((Number)       SIZE.invoke(url)).longValue(); }
     public static boolean         exists(String url)                           { return (boolean)     EXISTS.invoke(url); }
     public static void            delete(String url)                           {                      DELETE.invoke(url); }
     public static void             mkdir(String url)                           {                       MKDIR.invoke(url); }
+
+    // Batches: many URLs at once, with `opts().parallelism(n)`; throw after all URLs are done if any of them failed
+    public static void        deleteMany(Collection<String> urls)              { deleteMany(urls, opts()); }
+    public static void        deleteMany(Collection<String> urls,
+                                         Map<String, Object> opts)             {                    DELETE_M.invoke(PersistentVector.create(urls), s2o_k2o(opts)); }
+    public static void        deleteTree(String url)                           { deleteTree(url, opts()); }
+    public static void        deleteTree(String url, Map<String, Object> opts) {                    DELETE_T.invoke(url, s2o_k2o(opts)); }
+    public static Map<String, Boolean> existsMany(Collection<String> urls)     { return existsMany(urls, opts()); }
+    public static Map<String, Boolean> existsMany(Collection<String> urls,
+                                                  Map<String, Object> opts)    { Map<String, Boolean> m = new HashMap<>();
+                                                                                 for (Map.Entry<?, ?> kv : ((Map<?, ?>) EXISTS_M.invoke(PersistentVector.create(urls), s2o_k2o(opts))).entrySet())
+                                                                                     m.put((String) kv.getKey(), (Boolean) kv.getValue());
+                                                                                 return m; }
+    public static Map<String, Long>      sizeMany(Collection<String> urls)     { return sizeMany(urls, opts()); }
+    public static Map<String, Long>      sizeMany(Collection<String> urls,
+                                                  Map<String, Object> opts)    { Map<String, Long> m = new HashMap<>();
+                                                                                 for (Map.Entry<?, ?> kv : ((Map<?, ?>) SIZE_M.invoke(PersistentVector.create(urls), s2o_k2o(opts))).entrySet())
+                                                                                     m.put((String) kv.getKey(), ((Number) kv.getValue()).longValue());
+                                                                                 return m; }
     public static void              copy(String fromUrl, String toUrl)         {                        COPY.invoke(fromUrl, toUrl); }
+    public static Map<String, Object> copyTree(String fromUrl, String toUrl)   { return copyTree(fromUrl, toUrl, opts()); }
+    public static Map<String, Object> copyTree(String fromUrl, String toUrl,
+                                               Map<String, Object> opts)       { return k2o_s2o((Map<?, ?>) COPY_T.invoke(fromUrl, toUrl, s2o_k2o(opts))); }
     public static Iterable<Entry>     ls(String url)                           { return ls(url, opts()); }
-    public static Iterable<Entry>     ls(String url, Map<String, Object> opts) { return ((List<Map<Keyword, Object>>) LS.invoke(url, s2o_k2o(opts)))
-                                                                                        .stream()
-                                                                                        .map(Uio::k2o_entry)::iterator; }
-
-    private static Map<String, Object>  k2o_s2o(Map<Keyword, ?> k2o) { return k2o.entrySet().stream().collect(Collectors.toMap(kv -> kv.getKey().getName(),       Map.Entry::getValue));}
-    private static Map<Keyword, Object> s2o_k2o(Map<String, ?>  s2o) { return s2o.entrySet().stream().collect(Collectors.toMap(kv -> Keyword.intern(kv.getKey()), Map.Entry::getValue));}
-
-    private static Entry k2o_entry(Map<Keyword, Object> k2o) {
-        Map<String, Object> s2o = k2o_s2o(k2o);
-
-        String url     = (String) s2o.get("url");
-        boolean isFile = Boolean.TRUE.equals(s2o.get("file"));
-        boolean isDir  = Boolean.TRUE.equals(s2o.get("dir"));
-        Number size    = (Number) s2o.get("size");
-
-        s2o.remove("url");
-        s2o.remove("file");
-        s2o.remove("dir");
-        s2o.remove("size");
-
-        return new Entry(url,
-                isFile,
-                isDir,
-                size != null ? (long) size : -1,
-                Collections.unmodifiableMap(s2o));
+    public static Iterable<Entry>     ls(String url, Map<String, Object> opts) { Iterable<?> xs = (Iterable<?>) LS.invoke(url, s2o_k2o(opts));
+                                                                                 return () -> entries(xs.iterator()); }
+
+    // Same as `ls`, but entries are streamed, and closing the stream releases connections right away
+    // (instead of when the listing is exhausted or garbage-collected). Use with try-with-resources.
+    public static Stream<Entry>     list(String url)                           { return list(url, opts()); }
+    public static Stream<Entry>     list(String url, Map<String, Object> opts) {
+        IPersistentVector xs_close = (IPersistentVector) COLLECT_CLOSERS.invoke(new AFn() {
+            public Object invoke() {
+                return LS.invoke(url, s2o_k2o(opts));
+            }
+        });
+        Iterator<Entry> entries = entries(((Iterable<?>) xs_close.nth(0)).iterator());
+        IFn close = (IFn) xs_close.nth(1);
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(entries, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                            .onClose(close::invoke);
+    }
+
+    private static Map<String, Object>  k2o_s2o(Map<?, ?>       k2o) { return k2o.entrySet().stream().collect(Collectors.toMap(kv -> ((Keyword) kv.getKey()).getName(), Map.Entry::getValue));}
+    private static Map<Keyword, Object> s2o_k2o(Map<String, ?>  s2o) { return (Map<Keyword, Object>) PersistentHashMap.create(s2o.entrySet().stream().collect(Collectors.toMap(kv -> Keyword.intern(kv.getKey()), Map.Entry::getValue)));}
+
+    // NOTE: don't use `.stream()` on lazy seqs: their `spliterator()` calls `size()`, which realizes the whole seq
+    private static Iterator<Entry> entries(Iterator<?> kvs) {
+        return new Iterator<Entry>() {
+            public boolean hasNext() { return kvs.hasNext(); }
+            public Entry   next()    { return Entry.of((IPersistentMap) kvs.next()); }
+        };
     }
 
     public static class Opts extends HashMap<String, Object> {
@@ -84,12 +129,29 @@ public class Uio {
         public Opts recurse(boolean v) { return add("recurse", v); }
         public Opts offset (long    v) { return add("offset",  v); }
         public Opts length (long    v) { return add("length",  v); }
+
+        // for `copyTree`, `deleteTree` and batches
+        public Opts parallelism  (int     v) { return add("parallelism",    v); }
+        public Opts skipUnchanged(boolean v) { return add("skip-unchanged", v); }
+        public Opts progress(Consumer<Map<String, Object>> c) {
+            return add("progress", new AFn() {
+                public Object invoke(Object stats) {
+                    c.accept(k2o_s2o((Map<?, ?>) stats));
+                    return null;
+                }
+            });
+        }
     }
 
     public static Opts opts()                   { return new Opts(); }
     public static Opts opts(String k, Object v) { return opts().add(k, v); }
 
     public static class Entry {
+        private static final Keyword URL  = Keyword.intern("url");
+        private static final Keyword FILE = Keyword.intern("file");
+        private static final Keyword DIR  = Keyword.intern("dir");
+        private static final Keyword SIZE = Keyword.intern("size");
+
         public final String url;
         public final boolean file;
         public final boolean dir;
@@ -105,6 +167,18 @@ public class Uio {
             this.extra = extra;
         }
 
+        // reads `kv` as is: `extra` is a read-only view of the remaining keys, converted only when accessed
+        @SuppressWarnings("deprecation")
+        public static Entry of(IPersistentMap kv) {
+            Number size = (Number) kv.valAt(SIZE);
+            boolean dir = Boolean.TRUE.equals(kv.valAt(DIR));
+            return new Entry((String) kv.valAt(URL),
+                             Boolean.TRUE.equals(kv.valAt(FILE)) || (size != null && !dir), // implementations mark files with :size
+                             dir,
+                             size != null ? size.longValue() : -1,
+                             new Extra(kv));
+        }
+
         public String           getUrl() { return url; }
         public boolean           isDir() { return dir; }
         public boolean          isFile() { return file; }
@@ -137,5 +211,67 @@ public class Uio {
                    (isFile() ? " " + size : "") +
                    (extra.isEmpty() ? "" : " " + extra.toString());
         }
+
+        private static class Extra extends AbstractMap<String, Object> {
+            private final IPersistentMap kv;
+
+            Extra(IPersistentMap kv) {
+                this.kv = kv;
+            }
+
+            private static boolean isExtra(Object k) {
+                return k instanceof Keyword && k != URL && k != FILE && k != DIR && k != SIZE;
+            }
+
+            public Object get(Object k) {
+                if (!(k instanceof String))
+                    return null;
+                Keyword kw = Keyword.intern((String) k);
+                return isExtra(kw) ? kv.valAt(kw) : null;
+            }
+
+            public boolean containsKey(Object k) {
+                return k instanceof String && isExtra(Keyword.intern((String) k)) && kv.containsKey(Keyword.intern((String) k));
+            }
+
+            public Set<Map.Entry<String, Object>> entrySet() {
+                return new AbstractSet<Map.Entry<String, Object>>() {
+                    public Iterator<Map.Entry<String, Object>> iterator() {
+                        Iterator<?> i = ((Iterable<?>) kv).iterator();
+                        return new Iterator<Map.Entry<String, Object>>() {
+                            private Map.Entry<?, ?> next = advance();
+
+                            private Map.Entry<?, ?> advance() {
+                                while (i.hasNext()) {
+                                    Map.Entry<?, ?> e = (Map.Entry<?, ?>) i.next();
+                                    if (isExtra(e.getKey()))
+                                        return e;
+                                }
+                                return null;
+                            }
+
+                            public boolean hasNext() {
+                                return next != null;
+                            }
+
+                            public Map.Entry<String, Object> next() {
+                                if (next == null)
+                                    throw new NoSuchElementException();
+                                Map.Entry<String, Object> e = new SimpleImmutableEntry<>(((Keyword) next.getKey()).getName(), next.getValue());
+                                next = advance();
+                                return e;
+                            }
+                        };
+                    }
+
+                    public int size() {
+                        int n = 0;
+                        for (Iterator<?> i = iterator(); i.hasNext(); i.next())
+                            n++;
+                        return n;
+                    }
+                };
+            }
+        }
     }
 }
@@ -0,0 +1,240 @@
+package uio;
+
+import clojure.java.api.Clojure;
+import clojure.lang.Atom;
+import clojure.lang.IFn;
+import clojure.lang.PersistentVector;
+import clojure.lang.RT;
+import clojure.lang.Var;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static clojure.java.api.Clojure.var;
+
+// Same as `Uio`, but calls run on an executor and return `CompletableFuture`s. See `test/uio/Example.java`
+//
+// - executor: virtual threads (JDK 21+) or a pool of 64 daemon threads by default, or any `Executor` passed in
+// - limits:   `limit("s3", 32)` runs up to 32 calls on s3:// URLs at once (calls of `copy` take a permit of both
+//             schemes), queueing the rest without blocking threads of the executor. No limit by default
+// - config:   calls see bindings of the calling thread, e.g. `*config*` of `uio.impl/with-fn`
+// - cancel:   `cancel` of a future skips a queued call, and closes streams the running call opened (e.g. both streams
+//             of `copy`, which makes it fail fast). Streams returned by `from`/`to` are closed if cancelled before
+//             they're returned
+public class UioAsync implements AutoCloseable {
+    static { var("clojure.core", "require").invoke(Clojure.read("uio.uio")); }
+
+    private static final Var CLOSERS = (Var) var("uio.impl/*closers*");
+    private static final IFn SCHEME  = var("uio.uio/scheme");
+
+    private final Executor executor;
+    private final ExecutorService ownExecutor;                 // shut down by `close`
+    private final Map<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+    public UioAsync()                  { this(defaultExecutor(), true); }
+    public UioAsync(Executor executor) { this(executor, false); }
+
+    private UioAsync(Executor executor, boolean own) {
+        this.executor = executor;
+        this.ownExecutor = own ? (ExecutorService) executor : null;
+    }
+
+    public UioAsync limit(String scheme, int maxCalls) {
+        if (maxCalls < 1)
+            throw new IllegalArgumentException("Expected `maxCalls` to be positive, but got: " + maxCalls);
+        limiters.put(scheme, new Limiter(maxCalls));
+        return this;
+    }
+
+    public CompletableFuture<InputStream>  from(String url)                              { return submit(url, () -> Uio.from(url)); }
+    public CompletableFuture<InputStream>  from(String url, Map<String, Object> opts)    { return submit(url, () -> Uio.from(url, opts)); }
+    public CompletableFuture<OutputStream>   to(String url)                              { return submit(url, () -> Uio.to(url)); }
+    public CompletableFuture<Long>         size(String url)                              { return submit(url, () -> Uio.size(url)); }
+    public CompletableFuture<Boolean>    exists(String url)                              { return submit(url, () -> Uio.exists(url)); }
+    public CompletableFuture<Void>       delete(String url)                              { return submit(url, () -> { Uio.delete(url); return null; }); }
+    public CompletableFuture<Void>        mkdir(String url)                              { return submit(url, () -> { Uio.mkdir(url); return null; }); }
+    public CompletableFuture<Void>         copy(String fromUrl, String toUrl)            { return submit(schemes(fromUrl, toUrl), () -> { Uio.copy(fromUrl, toUrl); return null; }); }
+
+    // One call per URL (each under the limit of its scheme), completed when all are done, or failed with the first error
+    public CompletableFuture<Map<String, Long>>    sizeMany(Collection<String> urls)     { return many(urls, this::size); }
+    public CompletableFuture<Map<String, Boolean>> existsMany(Collection<String> urls)   { return many(urls, this::exists); }
+
+    // Runs `call` like the methods above: under the limit of the scheme of `url`, with bindings of the calling thread
+    public <T> CompletableFuture<T> submit(String url, Callable<T> call) {
+        return submit(schemes(url), call);
+    }
+
+    public void close() {
+        if (ownExecutor != null)
+            ownExecutor.shutdown();
+    }
+
+    private interface Call<T> {
+        CompletableFuture<T> apply(String url);
+    }
+
+    private static <T> CompletableFuture<Map<String, T>> many(Collection<String> urls, Call<T> call) {
+        Map<String, CompletableFuture<T>> fs = new HashMap<>();
+        for (String url : urls)
+            fs.put(url, call.apply(url));
+
+        CompletableFuture<Map<String, T>> all = CompletableFuture.allOf(fs.values().toArray(new CompletableFuture<?>[0]))
+                                                                 .thenApply(_v -> {
+                                                                     Map<String, T> m = new HashMap<>();
+                                                                     for (Map.Entry<String, CompletableFuture<T>> kv : fs.entrySet())
+                                                                         m.put(kv.getKey(), kv.getValue().join());
+                                                                     return m;
+                                                                 });
+        all.whenComplete((_r, _e) -> {
+            if (all.isCancelled())
+                fs.values().forEach(f -> f.cancel(false));
+        });
+        return all;
+    }
+
+    private <T> CompletableFuture<T> submit(TreeSet<String> schemes, Callable<T> call) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        Object frame = Var.cloneThreadBindingFrame();
+        Atom closers = new Atom(PersistentVector.EMPTY);        // streams opened by `call`, see `uio.impl/wrap-is`
+
+        f.whenComplete((_r, _e) -> {
+            if (f.isCancelled())
+                closeAll(closers);
+        });
+
+        Runnable run = () -> {
+            if (f.isDone())                                     // cancelled while queued
+                return;
+
+            Object callerFrame = Var.getThreadBindingFrame();
+            Var.resetThreadBindingFrame(frame);
+            Var.pushThreadBindings(RT.map(CLOSERS, closers));
+            try {
+                if (!f.complete(call.call()))
+                    closeAll(closers);
+            } catch (Throwable t) {
+                f.completeExceptionally(t);
+            } finally {
+                Var.popThreadBindings();
+                Var.resetThreadBindingFrame(callerFrame);
+            }
+        };
+
+        acquire(limiters(schemes), 0, run, f);
+        return f;
+    }
+
+    private Limiter[] limiters(TreeSet<String> schemes) {
+        return schemes.stream()
+                      .map(limiters::get)
+                      .filter(l -> l != null)
+                      .toArray(Limiter[]::new);
+    }
+
+    // Permits are taken in the order of scheme names, so two calls never wait for each other's permits
+    private void acquire(Limiter[] ls, int i, Runnable run, CompletableFuture<?> f) {
+        if (i < ls.length) {
+            ls[i].acquire(() -> acquire(ls, i + 1, run, f));
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    run.run();
+                } finally {
+                    release(ls);
+                }
+            });
+        } catch (Throwable t) {                                  // e.g. the executor was shut down
+            release(ls);
+            f.completeExceptionally(t);
+        }
+    }
+
+    private static void release(Limiter[] ls) {
+        for (Limiter l : ls)
+            l.release();
+    }
+
+    private static TreeSet<String> schemes(String... urls) {
+        TreeSet<String> ss = new TreeSet<>();
+        for (String url : urls) {
+            Object s = SCHEME.invoke(url);
+            if (s != null)
+                ss.add((String) s);
+        }
+        return ss;
+    }
+
+    private static void closeAll(Atom closers) {
+        for (Object c : (Iterable<?>) closers.deref())
+            try {
+                ((AutoCloseable) c).close();
+            } catch (Exception ignored) {
+            }
+    }
+
+    private static ExecutorService defaultExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {              // before JDK 21
+            AtomicInteger n = new AtomicInteger();
+            return Executors.newFixedThreadPool(64, r -> {
+                Thread t = new Thread(r, "uio-async-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    // Up to `max` holders of permits; the others wait in a queue (as callbacks, not threads)
+    private static class Limiter {
+        private final int max;
+        private final AtomicInteger running = new AtomicInteger();
+        private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+        Limiter(int max) {
+            this.max = max;
+        }
+
+        void acquire(Runnable then) {
+            waiting.add(then);
+            drain();
+        }
+
+        void release() {
+            running.decrementAndGet();
+            drain();
+        }
+
+        private void drain() {
+            while (!waiting.isEmpty()) {
+                int n = running.get();
+                if (n >= max)
+                    return;
+                if (!running.compareAndSet(n, n + 1))
+                    continue;
+
+                Runnable r = waiting.poll();
+                if (r == null)
+                    running.decrementAndGet();                  // taken by another thread, check again
+                else
+                    r.run();
+            }
+        }
+    }
+}
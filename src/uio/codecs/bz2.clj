@@ -1,6 +1,47 @@
 (ns uio.codecs.bz2
-  (:require [uio.impl :refer [ext->is->is ext->os->os]])
-  (:import (org.apache.commons.compress.compressors CompressorStreamFactory)))
+  (:require [uio.impl :refer [codec-threads config-int ext->is->is ext->os->os]])
+  (:import (java.io ByteArrayOutputStream)
+           (org.apache.commons.compress.compressors.bzip2 BZip2CompressorInputStream BZip2CompressorOutputStream)
+           (uio.fs Streams$ParallelBlockInputStream Streams$ParallelBlockOutputStream)))
 
-(defmethod ext->is->is :bz2 [_] #(.createCompressorInputStream  (CompressorStreamFactory.) CompressorStreamFactory/BZIP2 %))
-(defmethod ext->os->os :bz2 [_] #(.createCompressorOutputStream (CompressorStreamFactory.) CompressorStreamFactory/BZIP2 %))
+; With `:bz2.threads` > 1 (default: 1), blocks of `:bz2.block-size` bytes are compressed concurrently
+; into separate bzip2 streams, like `pbzip2` does. `bzip2 -d` decodes concatenated streams as a whole.
+;
+; Decoding splits the input at stream headers ("BZh" + level + block magic) and decodes streams concurrently
+; (with `:bz2.threads`, default: number of cores).
+; Files with long streams (e.g. written by `bzip2`) are decoded sequentially, since bzip2 blocks within a stream
+; are not byte-aligned.
+(def default-block-size 900000)                             ; = one block of `bzip2 -9`
+(def max-block-size     (quot Integer/MAX_VALUE 8))         ; decoding buffers up to 8 blocks
+
+(def stream-signature (int-array [0x42 0x5A 0x68 -1 0x31 0x41 0x59 0x26 0x53 0x59]))
+
+(defn encode-block [^bytes bs ^long length]
+  (let [baos (ByteArrayOutputStream. (+ 64 (quot length 2)))]
+    (with-open [os (BZip2CompressorOutputStream. baos)]
+      (.write os bs 0 (int length)))
+    (.toByteArray baos)))
+
+(defn decode-concatenated [is]
+  (BZip2CompressorInputStream. is true))
+
+(defmethod ext->is->is :bz2 [_] (fn [is]
+                                  (let [threads    (codec-threads :bz2.threads)
+                                        block-size (config-int :bz2.block-size default-block-size 1 max-block-size)]
+                                    (if (= 1 threads)
+                                      (decode-concatenated is)
+                                      (Streams$ParallelBlockInputStream. is
+                                                                         decode-concatenated
+                                                                         stream-signature
+                                                                         (* 2 block-size)
+                                                                         (* 8 block-size)
+                                                                         threads)))))
+
+(defmethod ext->os->os :bz2 [_] (fn [os]
+                                  (let [threads (config-int :bz2.threads 1 1 Integer/MAX_VALUE)]
+                                    (if (= 1 threads)
+                                      (BZip2CompressorOutputStream. os)
+                                      (Streams$ParallelBlockOutputStream. os
+                                                                          encode-block
+                                                                          (config-int :bz2.block-size default-block-size 1 max-block-size)
+                                                                          threads)))))
@@ -1,6 +1,28 @@
 (ns uio.codecs.gz
-  (:require [uio.impl :refer [ext->is->is ext->os->os]])
-  (:import (java.util.zip GZIPInputStream GZIPOutputStream)))
+  (:require [uio.impl :refer [config-int ext->is->is ext->os->os]])
+  (:import (java.io ByteArrayOutputStream)
+           (java.util.zip GZIPOutputStream)
+           (org.apache.commons.compress.compressors.gzip GzipCompressorInputStream)
+           (uio.fs Streams$ParallelBlockOutputStream)))
 
-(defmethod ext->is->is :gz  [_] #(GZIPInputStream. %))
-(defmethod ext->os->os :gz  [_] #(GZIPOutputStream. %))
+; With `:gz.threads` > 1 (default: 1), blocks of `:gz.block-size` bytes are compressed concurrently into separate
+; gzip members, like `pigz --independent`. A concatenation of members is a valid .gz file (RFC 1952) that `gzip -d`
+; decodes as a whole. So does decoding here: `GZIPInputStream` only reads the next member if `available()` is
+; positive, which is often 0 for network streams, and would silently stop after the first one.
+(def default-block-size (* 1024 1024))
+
+(defn encode-block [^bytes bs ^long length]
+  (let [baos (ByteArrayOutputStream. (+ 64 (quot length 2)))]
+    (with-open [os (GZIPOutputStream. baos)]
+      (.write os bs 0 (int length)))
+    (.toByteArray baos)))
+
+(defmethod ext->is->is :gz  [_] #(GzipCompressorInputStream. % true))
+(defmethod ext->os->os :gz  [_] (fn [os]
+                                  (let [threads (config-int :gz.threads 1 1 Integer/MAX_VALUE)]
+                                    (if (= 1 threads)
+                                      (GZIPOutputStream. os)
+                                      (Streams$ParallelBlockOutputStream. os
+                                                                          encode-block
+                                                                          (config-int :gz.block-size default-block-size 1 Integer/MAX_VALUE)
+                                                                          threads)))))
@@ -0,0 +1,36 @@
+(ns uio.codecs.lz4
+  (:require [uio.impl :refer [*config* codec-buffer-size config-int die ext->is->is ext->os->os]])
+  (:import (java.io BufferedInputStream BufferedOutputStream)
+           (net.jpountz.lz4 LZ4Factory LZ4FrameInputStream LZ4FrameOutputStream LZ4FrameOutputStream$BLOCKSIZE
+                            LZ4FrameOutputStream$FLG$Bits)
+           (net.jpountz.xxhash XXHashFactory)))
+
+; LZ4 frame format (same as the `lz4` tool). Config: `:lz4.level` (0 = fast, 1..17 = LZ4 HC; default 0),
+; `:lz4.block-size` (one of 64KB, 256KB, 1MB, 4MB; default 4MB), `:lz4.buffer-size` (bytes buffered between
+; the caller and the codec)
+(def default-block-size (* 4 1024 1024))
+
+(def block-sizes {(* 64 1024)     LZ4FrameOutputStream$BLOCKSIZE/SIZE_64KB
+                  (* 256 1024)    LZ4FrameOutputStream$BLOCKSIZE/SIZE_256KB
+                  (* 1024 1024)   LZ4FrameOutputStream$BLOCKSIZE/SIZE_1MB
+                  (* 4 1024 1024) LZ4FrameOutputStream$BLOCKSIZE/SIZE_4MB})
+
+(defn ->lz4-os [os]
+  (let [level      (config-int :lz4.level 0 0 17)
+        block-size (get *config* :lz4.block-size default-block-size)]
+    (LZ4FrameOutputStream. os
+                           (or (block-sizes block-size)
+                               (die (str "Expected :lz4.block-size to be one of " (sort (keys block-sizes))
+                                         ", but got: " (pr-str block-size))))
+                           -1
+                           (if (zero? level)
+                             (.fastCompressor (LZ4Factory/fastestInstance))
+                             (.highCompressor (LZ4Factory/fastestInstance) (int level)))
+                           (.hash32 (XXHashFactory/fastestInstance))
+                           (into-array [LZ4FrameOutputStream$FLG$Bits/BLOCK_INDEPENDENCE]))))
+
+(defmethod ext->is->is :lz4 [_] #(BufferedInputStream. (LZ4FrameInputStream. %)
+                                                       (codec-buffer-size :lz4.buffer-size)))
+
+(defmethod ext->os->os :lz4 [_] #(BufferedOutputStream. (->lz4-os %)
+                                                        (codec-buffer-size :lz4.buffer-size)))
@@ -0,0 +1,18 @@
+(ns uio.codecs.snappy
+  (:require [uio.impl :refer [codec-buffer-size config-int ext->is->is ext->os->os]])
+  (:import (java.io BufferedInputStream BufferedOutputStream)
+           (org.xerial.snappy SnappyFramedInputStream SnappyFramedOutputStream)))
+
+; Snappy framing format (as in `python -m snappy -c`, not Hadoop's block format). Snappy has no levels.
+; Config: `:snappy.block-size` (up to 64KB, the default), `:snappy.buffer-size` (bytes buffered between the caller
+; and the codec)
+(defmethod ext->is->is :snappy [_] #(BufferedInputStream. (SnappyFramedInputStream. %)
+                                                          (codec-buffer-size :snappy.buffer-size)))
+
+(defmethod ext->os->os :snappy [_] #(BufferedOutputStream. (SnappyFramedOutputStream. %
+                                                                                      (config-int :snappy.block-size
+                                                                                                  SnappyFramedOutputStream/MAX_BLOCK_SIZE
+                                                                                                  1
+                                                                                                  SnappyFramedOutputStream/MAX_BLOCK_SIZE)
+                                                                                      SnappyFramedOutputStream/DEFAULT_MIN_COMPRESSION_RATIO)
+                                                           (codec-buffer-size :snappy.buffer-size)))
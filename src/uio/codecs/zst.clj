@@ -0,0 +1,17 @@
+(ns uio.codecs.zst
+  (:require [uio.impl :refer [codec-buffer-size config-int ext->is->is ext->os->os]])
+  (:import (com.github.luben.zstd Zstd ZstdInputStream ZstdOutputStream)
+           (java.io BufferedInputStream BufferedOutputStream)))
+
+; Zstandard (`zstd`) frames. Config: `:zst.level` (default 3, same as `zstd`; negative levels are faster),
+; `:zst.buffer-size` (bytes buffered between the caller and the native codec)
+(def default-level 3)
+
+(defmethod ext->is->is :zst [_] #(BufferedInputStream. (ZstdInputStream. %)
+                                                       (codec-buffer-size :zst.buffer-size)))
+
+(defmethod ext->os->os :zst [_] #(BufferedOutputStream. (ZstdOutputStream. % (config-int :zst.level
+                                                                                         default-level
+                                                                                         (Zstd/minCompressionLevel)
+                                                                                         (Zstd/maxCompressionLevel)))
+                                                        (codec-buffer-size :zst.buffer-size)))
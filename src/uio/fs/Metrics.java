@@ -0,0 +1,462 @@
+package uio.fs;
+
+import clojure.lang.IFn;
+import clojure.lang.IRef;
+import clojure.lang.ISeq;
+import clojure.lang.MultiFn;
+import clojure.lang.RT;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Opt-in metrics of `uio.impl` multimethods (`from`, `to`, `ls`, `size`, ...), grouped by scheme + host
+// (e.g. "s3://bucket/"): calls, errors, in-flight calls and latency of each operation, bytes read/written through
+// streams returned by the multimethods, and open streams. While disabled, a metered call costs one volatile read.
+// When enabled with `jmx = true`, hosts and operations are also registered as MXBeans under the "uio" domain.
+public class Metrics {
+    private static volatile boolean enabled;
+    private static volatile boolean jmx;
+    private static final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    public static synchronized void enable(boolean registerMXBeans) {
+        if (registerMXBeans && !jmx)
+            for (Host h : hosts.values())
+                h.register();
+        jmx = jmx || registerMXBeans;
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static synchronized void reset() {
+        for (Host h : hosts.values())
+            h.unregister();
+        hosts.clear();
+    }
+
+    // => sorted by key, e.g. {"file:///" Host, "s3://bucket/" Host}
+    public static Map<String, Host> hosts() {
+        return Collections.unmodifiableMap(new TreeMap<>(hosts));
+    }
+
+    public static Host host(String key) {
+        Host h = hosts.get(key);
+        if (h != null)
+            return h;
+
+        synchronized (Metrics.class) {
+            return hosts.computeIfAbsent(key, k -> {
+                Host n = new Host(k);
+                if (jmx)
+                    n.register();
+                return n;
+            });
+        }
+    }
+
+    // "s3://user@bucket/path/to/file?q" -> "s3://bucket/", "file:///path" -> "file:///"
+    static String hostKey(Object url) {
+        if (!(url instanceof String))
+            return "?";
+
+        String s = (String) url;
+        int schemeEnd = s.indexOf(':');
+        if (schemeEnd == -1)
+            return "?";
+
+        int from = s.startsWith("//", schemeEnd + 1) ? schemeEnd + 3 : schemeEnd + 1;
+        int to = from;
+        while (to < s.length() && "/?#".indexOf(s.charAt(to)) == -1)
+            to++;
+
+        int at = s.lastIndexOf('@', to - 1);
+        if (at >= from)
+            from = at + 1;
+
+        return s.substring(0, schemeEnd) + "://" + s.substring(from, to) + "/";
+    }
+
+    public static Object unwrap(Object stream) {
+        return stream instanceof MeteredInputStream ? ((MeteredInputStream) stream).is
+                : stream instanceof MeteredOutputStream ? ((MeteredOutputStream) stream).os
+                : stream;
+    }
+
+    // for bytes moved between unwrapped streams, e.g. with `FileChannel.transferTo`
+    public static void addTransferred(Object is, Object os, long n) {
+        if (is instanceof MeteredInputStream)
+            ((MeteredInputStream) is).host.bytesRead.add(n);
+        if (os instanceof MeteredOutputStream)
+            ((MeteredOutputStream) os).host.bytesWritten.add(n);
+    }
+
+    private static ObjectName objectName(String s) {
+        try {
+            return new ObjectName(s);
+        } catch (JMException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    private static void register(Object mxBean, ObjectName name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (!server.isRegistered(name))
+                server.registerMBean(mxBean, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Couldn't register " + name, e);
+        }
+    }
+
+    private static void unregister(ObjectName name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Couldn't unregister " + name, e);
+        }
+    }
+
+    public interface HostMXBean {
+        long getBytesRead();
+
+        long getBytesWritten();
+
+        long getOpenInputStreams();
+
+        long getOpenOutputStreams();
+    }
+
+    public static class Host implements HostMXBean {
+        private final String key;
+        private final ObjectName name;
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder bytesWritten = new LongAdder();
+        private final LongAdder openInputStreams = new LongAdder();
+        private final LongAdder openOutputStreams = new LongAdder();
+        private final ConcurrentHashMap<String, Op> ops = new ConcurrentHashMap<>();
+
+        Host(String key) {
+            this.key = key;
+            this.name = objectName("uio:type=Host,name=" + ObjectName.quote(key));
+        }
+
+        public String getKey()              { return key; }
+        public long getBytesRead()          { return bytesRead.sum(); }
+        public long getBytesWritten()       { return bytesWritten.sum(); }
+        public long getOpenInputStreams()   { return openInputStreams.sum(); }
+        public long getOpenOutputStreams()  { return openOutputStreams.sum(); }
+
+        // => sorted by operation name
+        public Map<String, Op> ops() {
+            return Collections.unmodifiableMap(new TreeMap<>(ops));
+        }
+
+        public Op op(String op) {
+            Op o = ops.get(op);
+            if (o != null)
+                return o;
+
+            synchronized (Metrics.class) {
+                return ops.computeIfAbsent(op, k -> {
+                    Op n = new Op(this, objectName("uio:type=Op,host=" + ObjectName.quote(key) + ",name=" + k));
+                    if (jmx)
+                        Metrics.register(n, n.name);
+                    return n;
+                });
+            }
+        }
+
+        private void register() {
+            Metrics.register(this, name);
+            for (Op o : ops.values())
+                Metrics.register(o, o.name);
+        }
+
+        private void unregister() {
+            Metrics.unregister(name);
+            for (Op o : ops.values())
+                Metrics.unregister(o.name);
+        }
+
+        public String toString() {
+            return "Host{key=" + key + ", bytesRead=" + getBytesRead() + ", bytesWritten=" + getBytesWritten() + '}';
+        }
+    }
+
+    public interface OpMXBean {
+        long getCalls();
+
+        long getErrors();
+
+        long getInFlight();
+
+        double getMeanLatencyMillis();
+
+        double getP50LatencyMillis();
+
+        double getP90LatencyMillis();
+
+        double getP99LatencyMillis();
+
+        double getMaxLatencyMillis();
+    }
+
+    // Latencies are counted in buckets of powers of 2 microseconds: percentiles are upper bounds of buckets
+    // (at most 2x the actual value), capped by the max latency.
+    public static class Op implements OpMXBean {
+        private static final int BUCKETS = 40;                    // up to 2^39us ~ 6 days
+
+        private final Host host;
+        private final ObjectName name;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder inFlight = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        Op(Host host, ObjectName name) {
+            this.host = host;
+            this.name = name;
+        }
+
+        void start() {
+            inFlight.increment();
+        }
+
+        void end(long nanos, boolean error) {
+            inFlight.decrement();
+            calls.increment();
+            if (error)
+                errors.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos / 1000)));
+        }
+
+        public long getCalls()               { return calls.sum(); }
+        public long getErrors()              { return errors.sum(); }
+        public long getInFlight()            { return inFlight.sum(); }
+        public double getMeanLatencyMillis() { long c = getCalls(); return c == 0 ? 0 : totalNanos.sum() / 1e6 / c; }
+        public double getP50LatencyMillis()  { return latencyMillis(0.5); }
+        public double getP90LatencyMillis()  { return latencyMillis(0.9); }
+        public double getP99LatencyMillis()  { return latencyMillis(0.99); }
+        public double getMaxLatencyMillis()  { return maxNanos.get() / 1e6; }
+
+        public double latencyMillis(double quantile) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++)
+                total += buckets.get(i);
+            if (total == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0)
+                    return Math.min((1L << i) / 1e3, getMaxLatencyMillis());
+            }
+            return getMaxLatencyMillis();
+        }
+
+        public String toString() {
+            return "Op{name=" + name + ", calls=" + getCalls() + ", errors=" + getErrors() + '}';
+        }
+    }
+
+    // A `MultiFn` that records a call of `name` under the host of its `urlArg`-th argument when metrics are enabled.
+    // `InputStream`s and `OutputStream`s it returns are wrapped to count bytes and open streams.
+    public static class MeteredMultiFn extends MultiFn {
+        private final String name;
+        private final int urlArg;
+
+        public MeteredMultiFn(String name, IFn dispatchFn, Object defaultDispatchVal, IRef hierarchy, int urlArg) {
+            super(name, dispatchFn, defaultDispatchVal, hierarchy);
+            this.name = name;
+            this.urlArg = urlArg;
+        }
+
+        private Op start(Object url) {
+            Op op = host(hostKey(url)).op(name);
+            op.start();
+            return op;
+        }
+
+        private Object end(Op op, long started, Object result) {
+            op.end(System.nanoTime() - started, false);
+            if (result instanceof InputStream)
+                return new MeteredInputStream(op.host, (InputStream) result);
+            if (result instanceof OutputStream)
+                return new MeteredOutputStream(op.host, (OutputStream) result);
+            return result;
+        }
+
+        public Object invoke(Object a) {
+            if (!enabled)
+                return super.invoke(a);
+
+            long started = System.nanoTime();
+            Op op = start(a);
+            try {
+                return end(op, started, super.invoke(a));
+            } catch (Throwable e) {
+                op.end(System.nanoTime() - started, true);
+                throw e;
+            }
+        }
+
+        public Object invoke(Object a, Object b) {
+            if (!enabled)
+                return super.invoke(a, b);
+
+            long started = System.nanoTime();
+            Op op = start(urlArg == 0 ? a : b);
+            try {
+                return end(op, started, super.invoke(a, b));
+            } catch (Throwable e) {
+                op.end(System.nanoTime() - started, true);
+                throw e;
+            }
+        }
+
+        public Object invoke(Object a, Object b, Object c) {
+            if (!enabled)
+                return super.invoke(a, b, c);
+
+            long started = System.nanoTime();
+            Op op = start(urlArg == 0 ? a : b);
+            try {
+                return end(op, started, super.invoke(a, b, c));
+            } catch (Throwable e) {
+                op.end(System.nanoTime() - started, true);
+                throw e;
+            }
+        }
+
+        public Object invoke(Object a, Object b, Object c, Object d) {
+            if (!enabled)
+                return super.invoke(a, b, c, d);
+
+            long started = System.nanoTime();
+            Op op = start(urlArg == 0 ? a : b);
+            try {
+                return end(op, started, super.invoke(a, b, c, d));
+            } catch (Throwable e) {
+                op.end(System.nanoTime() - started, true);
+                throw e;
+            }
+        }
+
+        public Object applyTo(ISeq args) {
+            switch (RT.boundedLength(args, 4)) {
+                case 1:  return invoke(args.first());
+                case 2:  return invoke(args.first(), RT.second(args));
+                case 3:  return invoke(args.first(), RT.second(args), RT.third(args));
+                case 4:  return invoke(args.first(), RT.second(args), RT.third(args), RT.fourth(args));
+                default: return super.applyTo(args);
+            }
+        }
+    }
+
+    public static class MeteredInputStream extends InputStream {
+        private final Host host;
+        private final InputStream is;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        MeteredInputStream(Host host, InputStream is) {
+            this.host = host;
+            this.is = is;
+            host.openInputStreams.increment();
+        }
+
+        public int read() throws IOException {
+            int b = is.read();
+            if (b != -1)
+                host.bytesRead.increment();
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = is.read(b, off, len);
+            if (n > 0)
+                host.bytesRead.add(n);
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            return is.skip(n);
+        }
+
+        public int available() throws IOException {
+            return is.available();
+        }
+
+        public void close() throws IOException {
+            if (closed.compareAndSet(false, true))
+                host.openInputStreams.decrement();
+            is.close();
+        }
+
+        public String toString() {
+            return "MeteredInputStream{host=" + host.key + ", is=" + is + '}';
+        }
+    }
+
+    public static class MeteredOutputStream extends OutputStream {
+        private final Host host;
+        private final OutputStream os;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        MeteredOutputStream(Host host, OutputStream os) {
+            this.host = host;
+            this.os = os;
+            host.openOutputStreams.increment();
+        }
+
+        public void write(int b) throws IOException {
+            os.write(b);
+            host.bytesWritten.increment();
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            os.write(b, off, len);
+            host.bytesWritten.add(len);
+        }
+
+        public void flush() throws IOException {
+            os.flush();
+        }
+
+        public void close() throws IOException {
+            if (closed.compareAndSet(false, true))
+                host.openOutputStreams.decrement();
+            os.close();
+        }
+
+        public String toString() {
+            return "MeteredOutputStream{host=" + host.key + ", os=" + os + '}';
+        }
+    }
+}
@@ -11,30 +11,63 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class S3 {
     public static class S3OutputStream extends OutputStream {
-        private static final int BUFFER_SIZE = 5 * 1024 * 1024; // 5MB -- required minimum by S3 API
+        public static final int MIN_PART_SIZE = 5 * 1024 * 1024; // 5MB -- required minimum by S3 API
+        public static final int MAX_PARTS = 10000;               // required maximum by S3 API
 
         private final AmazonS3Client c;
         private final InitiateMultipartUploadResult init;
 
-        private final List<PartETag> tags = new ArrayList<>();
+        private final int partSize;
+        private final int parallelism;
+        private final ExecutorService executor;                  // null -- upload parts in the calling thread
+        private final BlockingQueue<byte[]> buffers;             // buffers that are not being filled or uploaded
+        private final List<Future<PartETag>> tags = new ArrayList<>();
 
-        private final byte[] buffer = new byte[BUFFER_SIZE];
         private final MessageDigest inDigest = MessageDigest.getInstance("MD5");
         private final MessageDigest outDigest = MessageDigest.getInstance("MD5");
 
-        private final MessageDigest localPartDigest = MessageDigest.getInstance("MD5");
-
+        private byte[] buffer;
+        private int allocated;                                   // number of buffers
         private int bufferOffset;
         private int partIndex;
+        private boolean done;                                    // closed or aborted
 
         public S3OutputStream(AmazonS3Client c, String bucket, String key, CannedAccessControlList cannedAclOrNull) throws NoSuchAlgorithmException {
+            this(c, bucket, key, cannedAclOrNull, MIN_PART_SIZE, 1);
+        }
+
+        // Uploads up to `parallelism` parts concurrently, holding at most `parallelism + 1` buffers of `partSize` bytes
+        public S3OutputStream(AmazonS3Client c, String bucket, String key, CannedAccessControlList cannedAclOrNull,
+                              int partSize, int parallelism) throws NoSuchAlgorithmException {
+            if (partSize < MIN_PART_SIZE)
+                throw new IllegalArgumentException("Expected part size to be at least " + MIN_PART_SIZE + " bytes, but got: " + partSize);
+            if (parallelism < 1)
+                throw new IllegalArgumentException("Expected parallelism to be at least 1, but got: " + parallelism);
+
             this.c = c;
+            this.partSize = partSize;
+            this.parallelism = parallelism;
+            this.buffers = new ArrayBlockingQueue<>(parallelism + 1);
 
             init = c.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)
                     .withCannedACL(cannedAclOrNull)); // setting only here, not setting in UploadPartRequest
+
+            this.executor = parallelism == 1
+                    ? null
+                    : Executors.newFixedThreadPool(parallelism, r -> {
+                          Thread t = new Thread(r, "uio-s3-upload-" + bucket);
+                          t.setDaemon(true);
+                          return t;
+                      });
         }
 
         public void write(int b) throws IOException {
@@ -42,16 +75,20 @@ public class S3 {
         }
 
         public void write(byte[] bs, int offset, int length) throws IOException {
+            if (done)
+                throw new IOException("Stream is closed: " + this);
+
             inDigest.update(bs, offset, length);
 
             while (length != 0) {
                 // flush buffer if full
-                if (bufferOffset == BUFFER_SIZE) {
+                if (buffer != null && bufferOffset == partSize)
                     _flush(false);
-                    bufferOffset = 0;
-                }
 
-                int bytesToCopy = Math.min(BUFFER_SIZE - bufferOffset, length);
+                if (buffer == null)
+                    buffer = takeBuffer();
+
+                int bytesToCopy = Math.min(partSize - bufferOffset, length);
 
                 // move to buffer
                 System.arraycopy(
@@ -66,25 +103,68 @@ public class S3 {
             }
         }
 
+        // reuse a buffer of an uploaded part, allocate a new one if there are less than `parallelism + 1`, or wait
+        private byte[] takeBuffer() throws IOException {
+            byte[] bs = buffers.poll();
+            if (bs != null)
+                return bs;
+
+            if (allocated < parallelism + 1) {
+                allocated++;
+                return new byte[partSize];
+            }
+
+            try {
+                return buffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw fail(e);
+            }
+        }
+
         private void _flush(boolean isLastPart) throws IOException {
-            outDigest.update(buffer, 0, bufferOffset);
+            if (partIndex == MAX_PARTS)
+                throw fail(new IOException("Reached the limit of " + MAX_PARTS + " parts of " + partSize + " bytes." +
+                                           " Consider increasing the part size"));
+
+            byte[] bs = buffer != null ? buffer : new byte[0];
+            int length = bufferOffset;
+            int partNumber = ++partIndex;
+
+            outDigest.update(bs, 0, length);
 
-            localPartDigest.reset();
-            localPartDigest.update(buffer, 0, bufferOffset);
+            buffer = null;
+            bufferOffset = 0;
 
-            String localPartEtag = hex(localPartDigest.digest());
+            if (executor == null) {
+                try {
+                    tags.add(new Done(uploadPart(bs, length, partNumber, isLastPart)));
+                } catch (Exception e) {
+                    throw fail(e);
+                }
+            } else {
+                failIfAnyPartFailed();
+                tags.add(executor.submit(() -> uploadPart(bs, length, partNumber, isLastPart)));
+            }
+        }
+
+        private PartETag uploadPart(byte[] bs, int length, int partNumber, boolean isLastPart) throws NoSuchAlgorithmException {
             try {
+                MessageDigest localPartDigest = MessageDigest.getInstance("MD5");
+                localPartDigest.update(bs, 0, length);
+
+                String localPartEtag = hex(localPartDigest.digest());
+
                 UploadPartRequest upr = new UploadPartRequest()
                         .withBucketName(init.getBucketName())
                         .withKey(init.getKey())
                         .withUploadId(init.getUploadId())
-                        .withPartNumber(partIndex + 1)
-                        .withInputStream(new ByteArrayInputStream(buffer, 0, bufferOffset))
-                        .withPartSize(bufferOffset)
+                        .withPartNumber(partNumber)
+                        .withInputStream(new ByteArrayInputStream(bs, 0, length))
+                        .withPartSize(length)
                         .withLastPart(isLastPart);
 
                 PartETag remotePartEtag = c.uploadPart(upr).getPartETag();
-                tags.add(remotePartEtag);
 
                 if (!remotePartEtag.getETag().equals(localPartEtag)) {
                     throw new RuntimeException("Part ETags don't match:\n" +
@@ -92,15 +172,40 @@ public class S3 {
                             " - remote: " + remotePartEtag.getETag());
                 }
 
-                partIndex++;
-            } catch (Exception e) {
-                abort();
-                throw e;
+                return remotePartEtag;
+            } finally {
+                if (bs.length == partSize)
+                    buffers.offer(bs);
+            }
+        }
+
+        private void failIfAnyPartFailed() throws IOException {
+            for (Future<PartETag> f : tags)
+                if (f.isDone())
+                    getTag(f);
+        }
+
+        private PartETag getTag(Future<PartETag> f) throws IOException {
+            try {
+                return f.get();
+            } catch (ExecutionException e) {
+                throw fail(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw fail(e);
             }
         }
 
         public void close() throws IOException {
+            if (done)
+                return;
+
             _flush(true);
+
+            List<PartETag> partETags = new ArrayList<>();
+            for (Future<PartETag> f : tags)
+                partETags.add(getTag(f));
+
             try {
                 String read = hex(inDigest.digest());
                 String written = hex(outDigest.digest());
@@ -111,23 +216,42 @@ public class S3 {
                             " - written: " + written);
 
                 String remoteEtag = c.completeMultipartUpload(
-                        new CompleteMultipartUploadRequest(init.getBucketName(), init.getKey(), init.getUploadId(), tags)
+                        new CompleteMultipartUploadRequest(init.getBucketName(), init.getKey(), init.getUploadId(), partETags)
                 ).getETag();
 
-                localPartDigest.reset();
-                for (PartETag tag : tags) {
-                    localPartDigest.update(unhex(tag.getETag()));
+                MessageDigest localDigest = MessageDigest.getInstance("MD5");
+                for (PartETag tag : partETags) {
+                    localDigest.update(unhex(tag.getETag()));
                 }
-                String localEtag = hex(localPartDigest.digest()) + "-" + partIndex;
+                String localEtag = Streams.S3EtagDigest.etag(localDigest.digest(), partIndex);
 
                 if (!localEtag.equals(remoteEtag))
                     throw new RuntimeException("Etags don't match:\n" +
                             " - local : " + localEtag + "\n" +
                             " - remote: " + remoteEtag);
             } catch (Exception e) {
-                abort(); // TODO delete remote file if exception happened after `c.completeMultipartUpload(...)`
-                throw e;
+                throw fail(e); // TODO delete remote file if exception happened after `c.completeMultipartUpload(...)`
+            } finally {
+                shutdown();
+            }
+        }
+
+        // abort the upload (once) and rethrow
+        private IOException fail(Throwable t) {
+            if (!done) {
+                done = true;
+                shutdown();
+                abort();
             }
+            return t instanceof IOException
+                    ? (IOException) t
+                    : new IOException(t.getMessage(), t);
+        }
+
+        private void shutdown() {
+            done = true;
+            if (executor != null)
+                executor.shutdownNow();
         }
 
         private static String hex(byte[] bs) {
@@ -146,4 +270,17 @@ public class S3 {
             return "S3OutputStream{bucket='" + init.getBucketName() + '\'' + ", key='" + init.getKey() + '\'' + '}';
         }
     }
+
+    // a part that was uploaded in the calling thread
+    private static class Done implements Future<PartETag> {
+        private final PartETag tag;
+
+        Done(PartETag tag)                                        { this.tag = tag; }
+
+        public boolean cancel(boolean mayInterruptIfRunning)      { return false; }
+        public boolean isCancelled()                              { return false; }
+        public boolean isDone()                                   { return true; }
+        public PartETag get()                                     { return tag; }
+        public PartETag get(long timeout, java.util.concurrent.TimeUnit unit) { return tag; }
+    }
 }
@@ -4,13 +4,32 @@ import clojure.lang.Counted;
 import clojure.lang.IFn;
 
 import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Streams {
     public static class NullOutputStream extends OutputStream {
@@ -29,7 +48,7 @@ public class Streams {
 
     public static class CountableInputStream extends InputStream implements Counted {
         private final InputStream is;
-        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicLong count = new AtomicLong();
 
         public CountableInputStream(InputStream is) {
             this.is = assertNotNull(is, "is");
@@ -49,18 +68,23 @@ public class Streams {
             return n;
         }
 
+        // => throws `ArithmeticException` past `Integer.MAX_VALUE`, use `getCount()` for streams over 2GB
         public int count() {
+            return Math.toIntExact(count.get());
+        }
+
+        public long getCount() {
             return count.get();
         }
 
         public String toString() {
-            return "CountableInputStream{count=" + count() + ", is=" + is.getClass().getName() + "}";
+            return "CountableInputStream{count=" + getCount() + ", is=" + is.getClass().getName() + "}";
         }
     }
 
     public static class CountableOutputStream extends OutputStream implements Counted {
         private final OutputStream os;
-        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicLong count = new AtomicLong();
 
         public CountableOutputStream(OutputStream os) {
             this.os = assertNotNull(os, "os");
@@ -84,12 +108,17 @@ public class Streams {
             os.close();
         }
 
+        // => throws `ArithmeticException` past `Integer.MAX_VALUE`, use `getCount()` for streams over 2GB
         public int count() {
+            return Math.toIntExact(count.get());
+        }
+
+        public long getCount() {
             return count.get();
         }
 
         public String toString() {
-            return "CountableOutputStream{count=" + count() + ", os=" + os.getClass().getName() + "}";
+            return "CountableOutputStream{count=" + getCount() + ", os=" + os.getClass().getName() + "}";
         }
     }
 
@@ -177,6 +206,194 @@ public class Streams {
         }
     }
 
+    // Updates several digests with each buffer read, e.g. MD5 and SHA-256 in one pass
+    public static class MultiDigestInputStream extends InputStream {
+        private final InputStream is;
+        private final MessageDigest[] mds;
+        private byte[][] digests;
+
+        public MultiDigestInputStream(InputStream is, MessageDigest... mds) {
+            this.is = assertNotNull(is, "is");
+            this.mds = assertNotNull(mds, "mds");
+        }
+
+        public int read() throws IOException {
+            int b = is.read();
+            if (b != -1)
+                for (MessageDigest md : mds)
+                    md.update((byte) b);
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = is.read(b, off, len);
+            if (n > 0)
+                for (MessageDigest md : mds)
+                    md.update(b, off, n);
+            return n;
+        }
+
+        public void close() throws IOException {
+            is.close();
+            if (digests == null)
+                digests = digestAll(mds);
+        }
+
+        // => digests in the order of `mds`
+        public byte[][] closeAndDigests() throws IOException {
+            close();
+            return copyAll(digests);
+        }
+
+        public MessageDigest[] getMessageDigests() {
+            return Arrays.copyOf(mds, mds.length);
+        }
+
+        public String toString() {
+            return "MultiDigestInputStream{mds=" + mds.length + ", is=" + is.getClass().getName() + "}";
+        }
+    }
+
+    // Updates several digests with each buffer written, e.g. MD5 and SHA-256 in one pass
+    public static class MultiDigestOutputStream extends OutputStream {
+        private final OutputStream os;
+        private final MessageDigest[] mds;
+        private byte[][] digests;
+
+        public MultiDigestOutputStream(OutputStream os, MessageDigest... mds) {
+            this.os = assertNotNull(os, "os");
+            this.mds = assertNotNull(mds, "mds");
+        }
+
+        public void write(int b) throws IOException {
+            os.write(b);
+            for (MessageDigest md : mds)
+                md.update((byte) b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            os.write(b, off, len);
+            for (MessageDigest md : mds)
+                md.update(b, off, len);
+        }
+
+        public void flush() throws IOException {
+            os.flush();
+        }
+
+        public void close() throws IOException {
+            os.close();
+            if (digests == null)
+                digests = digestAll(mds);
+        }
+
+        // => digests in the order of `mds`
+        public byte[][] closeAndDigests() throws IOException {
+            close();
+            return copyAll(digests);
+        }
+
+        public MessageDigest[] getMessageDigests() {
+            return Arrays.copyOf(mds, mds.length);
+        }
+
+        public String toString() {
+            return "MultiDigestOutputStream{mds=" + mds.length + ", os=" + os.getClass().getName() + "}";
+        }
+    }
+
+    private static byte[][] digestAll(MessageDigest[] mds) {
+        byte[][] digests = new byte[mds.length][];
+        for (int i = 0; i < mds.length; i++)
+            digests[i] = mds[i].digest();
+        return digests;
+    }
+
+    private static byte[][] copyAll(byte[][] digests) {
+        byte[][] copies = new byte[digests.length][];
+        for (int i = 0; i < digests.length; i++)
+            copies[i] = Arrays.copyOf(digests[i], digests[i].length);
+        return copies;
+    }
+
+    // The ETag S3 gives to an object uploaded in parts of `partSize` bytes (as `S3$S3OutputStream` does):
+    // MD5 of the concatenated MD5s of the parts. `digest()` returns those 16 bytes, use `etag(...)` for the ETag itself.
+    // Like `S3$S3OutputStream`, empty input is one empty part.
+    public static class S3EtagDigest extends MessageDigest {
+        private final long partSize;
+        private final MessageDigest partMd5 = newMd5();
+        private final MessageDigest md5s = newMd5();
+        private long partBytes;
+        private int parts;
+        private int digestedParts;                                // parts of the last `digest()`
+
+        public S3EtagDigest(long partSize) {
+            super("S3-ETAG");
+            if (partSize < 1)
+                throw new IllegalArgumentException("Expected part size to be at least 1, but got: " + partSize);
+            this.partSize = partSize;
+        }
+
+        // e.g. "d41d8cd98f00b204e9800998ecf8427e-2"
+        public static String etag(byte[] md5OfMd5s, int parts) {
+            return DatatypeConverter.printHexBinary(md5OfMd5s).toLowerCase() + "-" + parts;
+        }
+
+        public long getPartSize() {
+            return partSize;
+        }
+
+        public int getDigestedParts() {
+            return digestedParts;
+        }
+
+        protected void engineUpdate(byte input) {
+            engineUpdate(new byte[]{input}, 0, 1);
+        }
+
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            while (len > 0) {
+                if (partBytes == partSize)                        // only once more bytes come, like `S3OutputStream`
+                    endPart();
+
+                int n = (int) Math.min(len, partSize - partBytes);
+                partMd5.update(input, offset, n);
+                partBytes += n;
+                offset += n;
+                len -= n;
+            }
+        }
+
+        protected byte[] engineDigest() {
+            endPart();
+            digestedParts = parts;
+            byte[] digest = md5s.digest();
+            parts = 0;
+            return digest;
+        }
+
+        protected void engineReset() {
+            partMd5.reset();
+            md5s.reset();
+            partBytes = 0;
+            parts = 0;
+        }
+
+        private void endPart() {
+            md5s.update(partMd5.digest());
+            partBytes = 0;
+            parts++;
+        }
+
+        private static MessageDigest newMd5() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
     public static class Finalizer implements AutoCloseable {
         private IFn f;
 
@@ -221,7 +438,7 @@ public class Streams {
             if (remaining == 0)
                 return -1;
 
-            int n = is.read(b, off, Math.min((int) remaining, len));
+            int n = is.read(b, off, (int) Math.min(remaining, len));
             if (n >= 0)
                 remaining -= n;
 
@@ -237,6 +454,864 @@ public class Streams {
         }
     }
 
+    // Reads `length` bytes starting at `offset` as consecutive chunks of `chunkSize` bytes, fetching up to
+    // `parallelism` chunks concurrently, and returns them in order. Holds up to `parallelism + 1` chunks in memory.
+    // `openRange` is (fn [^long offset ^long length] ...) -> InputStream, and it's called from worker threads.
+    public static class ParallelRangeInputStream extends InputStream {
+        private final IFn openRange;
+        private final long end;
+        private final int chunkSize;
+        private final ExecutorService executor;
+        private final Deque<Future<Chunk>> chunks = new ArrayDeque<>();
+        private final BlockingQueue<byte[]> buffers;
+
+        private long nextOffset;                                  // offset of the next chunk to fetch
+        private Chunk chunk;                                      // chunk being read
+        private int chunkOffset;
+        private boolean closed;
+
+        private static class Chunk {
+            final byte[] bs;
+            final int length;
+
+            Chunk(byte[] bs, int length) {
+                this.bs = bs;
+                this.length = length;
+            }
+        }
+
+        public ParallelRangeInputStream(IFn openRange, long offset, long length, int chunkSize, int parallelism) {
+            if (chunkSize < 1)
+                throw new IllegalArgumentException("Expected chunk size to be at least 1, but got: " + chunkSize);
+            if (parallelism < 1)
+                throw new IllegalArgumentException("Expected parallelism to be at least 1, but got: " + parallelism);
+
+            this.openRange = assertNotNull(openRange, "openRange");
+            this.nextOffset = offset;
+            this.end = offset + length;
+            this.chunkSize = chunkSize;
+            this.buffers = new ArrayBlockingQueue<>(parallelism + 1);
+            this.executor = Executors.newFixedThreadPool(parallelism, r -> {
+                Thread t = new Thread(r, "uio-range-read");
+                t.setDaemon(true);
+                return t;
+            });
+
+            for (int i = 0; i < parallelism; i++)
+                fetchNext();
+        }
+
+        private void fetchNext() {
+            if (nextOffset >= end)
+                return;
+
+            long offset = nextOffset;
+            int length = (int) Math.min(chunkSize, end - offset);
+            byte[] recycled = buffers.poll();
+            byte[] bs = recycled != null ? recycled : new byte[chunkSize];
+
+            chunks.add(executor.submit(() -> {
+                try (InputStream is = (InputStream) openRange.invoke(offset, (long) length)) {
+                    int n = 0;
+                    while (n < length) {
+                        int r = is.read(bs, n, length - n);
+                        if (r == -1)
+                            throw new IOException("Expected " + length + " bytes at offset " + offset + ", but got " + n);
+                        n += r;
+                    }
+                    return new Chunk(bs, length);
+                }
+            }));
+            nextOffset += length;
+        }
+
+        // => false if there are no more chunks
+        private boolean nextChunk() throws IOException {
+            if (closed)
+                throw new IOException("Stream is closed");
+
+            if (chunk != null) {
+                buffers.offer(chunk.bs);
+                chunk = null;
+            }
+
+            Future<Chunk> f = chunks.poll();
+            if (f == null)
+                return false;
+
+            fetchNext();
+
+            try {
+                chunk = f.get();
+                chunkOffset = 0;
+                return true;
+            } catch (ExecutionException e) {
+                close();
+                throw e.getCause() instanceof IOException
+                        ? (IOException) e.getCause()
+                        : new IOException(e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new InterruptedIOException("Interrupted while waiting for a chunk");
+            }
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            while (chunk == null || chunkOffset == chunk.length)
+                if (!nextChunk())
+                    return -1;
+
+            int n = Math.min(len, chunk.length - chunkOffset);
+            System.arraycopy(chunk.bs, chunkOffset, b, off, n);
+            chunkOffset += n;
+            return n;
+        }
+
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            for (Future<Chunk> f : chunks)
+                f.cancel(true);
+            chunks.clear();
+            executor.shutdownNow();
+        }
+
+        public String toString() {
+            return "ParallelRangeInputStream{end=" + end + ", chunkSize=" + chunkSize + ", nextOffset=" + nextOffset + '}';
+        }
+    }
+
+    // Reads `length` bytes starting at `offset` from streams of `openAt`, and when a read fails (or a stream ends early)
+    // with an error `retryable` accepts, reopens at the current position after a backoff: `backoffMs` doubled on each
+    // consecutive failure, up to `maxBackoffMs`. Up to `retries` reopens in total, then the last error is thrown.
+    // `openAt` is (fn [^long offset ^long length] ...) -> InputStream, `retryable` is (fn [^Throwable t] ...) -> boolean.
+    public static class ResumableInputStream extends InputStream {
+        private final IFn openAt;
+        private final IFn retryable;
+        private final long end;
+        private final int retries;
+        private final long backoffMs;
+        private final long maxBackoffMs;
+
+        private long position;
+        private InputStream is;
+        private int resumes;                                      // reopens so far
+        private int failures;                                     // consecutive failures
+        private boolean closed;
+
+        public ResumableInputStream(IFn openAt, IFn retryable, long offset, long length, int retries, long backoffMs, long maxBackoffMs) {
+            if (retries < 0)
+                throw new IllegalArgumentException("Expected retries to be at least 0, but got: " + retries);
+
+            this.openAt = assertNotNull(openAt, "openAt");
+            this.retryable = assertNotNull(retryable, "retryable");
+            this.position = offset;
+            this.end = offset + length;
+            this.retries = retries;
+            this.backoffMs = backoffMs;
+            this.maxBackoffMs = maxBackoffMs;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed)
+                throw new IOException("Stream closed");
+            if (len == 0)
+                return 0;
+
+            while (position < end) {
+                try {
+                    if (is == null)
+                        is = (InputStream) openAt.invoke(position, end - position);
+
+                    int n = is.read(b, off, (int) Math.min(len, end - position));
+                    if (n < 0)
+                        throw new EOFException("Expected " + (end - position) + " more bytes at offset " + position);
+
+                    position += n;
+                    failures = 0;
+                    return n;
+                } catch (Throwable t) {
+                    closeQuietly();
+                    if (resumes == retries || !Boolean.TRUE.equals(retryable.invoke(t)))
+                        throw t instanceof IOException ? (IOException) t : new IOException(t);
+
+                    resumes++;
+                    failures++;
+                    sleep(Math.min(maxBackoffMs, backoffMs << Math.min(failures - 1, 30)));
+                }
+            }
+            return -1;
+        }
+
+        private static void sleep(long ms) throws InterruptedIOException {
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to resume");
+            }
+        }
+
+        private void closeQuietly() {
+            if (is != null)
+                try {
+                    is.close();
+                } catch (Throwable ignored) {
+                }
+            is = null;
+        }
+
+        public int available() throws IOException {
+            return is == null ? 0 : (int) Math.min(is.available(), end - position);
+        }
+
+        public long getPosition() { return position; }
+        public int  getResumes()  { return resumes; }
+
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            if (is != null)
+                is.close();
+            is = null;
+        }
+
+        public String toString() {
+            return "ResumableInputStream{position=" + position + ", end=" + end + ", resumes=" + resumes + '}';
+        }
+    }
+
+    // Reads `length` bytes of a file starting at `offset` through memory-mapped regions of up to `REGION_SIZE` bytes,
+    // so the page cache is read directly instead of being copied into a kernel -> user space buffer first.
+    // Regions are mapped one at a time, and the previous one is released by GC once unreachable.
+    public static class MappedInputStream extends InputStream {
+        public static final long REGION_SIZE = 1L << 30;           // 1GB
+
+        private final FileChannel c;
+        private final long end;
+        private long position;                                    // position in file of the next byte to read
+        private long regionStart;
+        private MappedByteBuffer region;
+
+        public MappedInputStream(FileChannel c, long offset, long length) throws IOException {
+            if (offset < 0)
+                throw new IllegalArgumentException("Expected offset to be at least 0, but got: " + offset);
+            if (length < 0)
+                throw new IllegalArgumentException("Expected length to be at least 0, but got: " + length);
+
+            this.c = assertNotNull(c, "c");
+            this.position = offset;
+            this.end = offset + Math.min(length, Math.max(0, c.size() - offset));
+        }
+
+        // => false if there are no more bytes
+        private boolean ensureRegion() throws IOException {
+            if (!c.isOpen())
+                throw new IOException("Stream is closed");
+
+            if (position >= end)
+                return false;
+
+            if (region == null || position < regionStart || regionStart + region.limit() <= position) {
+                regionStart = position;
+                region = c.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION_SIZE, end - position));
+            }
+            region.position((int) (position - regionStart));
+            return true;
+        }
+
+        public int read() throws IOException {
+            if (!ensureRegion())
+                return -1;
+            position++;
+            return region.get() & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!ensureRegion())
+                return -1;
+
+            int n = Math.min(len, region.remaining());
+            region.get(b, off, n);
+            position += n;
+            return n;
+        }
+
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        public void close() throws IOException {
+            region = null;
+            c.close();
+        }
+
+        public String toString() {
+            return "MappedInputStream{c=" + c + ", position=" + position + ", end=" + end + '}';
+        }
+    }
+
+    // Reads the remaining bytes of `bb` without copying them first, and without changing its position or limit.
+    public static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer bb;
+
+        public ByteBufferInputStream(ByteBuffer bb) {
+            this.bb = assertNotNull(bb, "bb").duplicate();
+        }
+
+        public int read() {
+            return bb.hasRemaining() ? bb.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!bb.hasRemaining())
+                return -1;
+
+            int n = Math.min(len, bb.remaining());
+            bb.get(b, off, n);
+            return n;
+        }
+
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, bb.remaining()));
+            bb.position(bb.position() + skipped);
+            return skipped;
+        }
+
+        public int available() {
+            return bb.remaining();
+        }
+
+        public String toString() {
+            return "ByteBufferInputStream{bb=" + bb + '}';
+        }
+    }
+
+    // A `ByteArrayOutputStream` that hands over its buffer instead of copying it like `toByteArray()` does.
+    public static class BytesOutputStream extends ByteArrayOutputStream {
+        // => a buffer of `size()` written bytes, backed by the internal array (which can be larger)
+        public synchronized ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count).slice();
+        }
+    }
+
+    // Hands written bytes over to `consumer` (fn [^InputStream is] ...), which runs on a dedicated thread, through
+    // a bounded queue of `chunkSize`-byte chunks: bytes are consumed while the producer is still writing, and memory
+    // use stays under (queueSize + 2) * chunkSize. `close()` waits for `consumer` to return, and rethrows its failure.
+    public static class ConsumingOutputStream extends OutputStream {
+        private static final byte[] EOF = new byte[0];
+
+        private final BlockingQueue<byte[]> chunks;
+        private final BlockingQueue<byte[]> free;
+        private final FutureTask<Object> task;
+        private final ChunksInputStream is = new ChunksInputStream();
+        private final int chunkSize;
+
+        private byte[] chunk;                                     // chunk being written
+        private int chunkLength;
+        private boolean closed;
+
+        public ConsumingOutputStream(IFn consumer, String threadName, int chunkSize, int queueSize) {
+            if (chunkSize < 1)
+                throw new IllegalArgumentException("Expected chunk size to be at least 1, but got: " + chunkSize);
+            if (queueSize < 1)
+                throw new IllegalArgumentException("Expected queue size to be at least 1, but got: " + queueSize);
+
+            assertNotNull(consumer, "consumer");
+            this.chunkSize = chunkSize;
+            this.chunks = new ArrayBlockingQueue<>(queueSize);
+            this.free = new ArrayBlockingQueue<>(queueSize + 1);
+
+            this.task = new FutureTask<>(() -> consumer.invoke(is));
+
+            Thread t = new Thread(task, threadName);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed)
+                throw new IOException("Stream is closed");
+
+            while (len > 0) {
+                if (chunk == null) {
+                    byte[] recycled = free.poll();
+                    chunk = recycled != null ? recycled : new byte[chunkSize];
+                }
+                int n = Math.min(len, chunkSize - chunkLength);
+                System.arraycopy(b, off, chunk, chunkLength, n);
+                chunkLength += n;
+                off += n;
+                len -= n;
+
+                if (chunkLength == chunkSize)
+                    putChunk();
+            }
+        }
+
+        private void putChunk() throws IOException {
+            byte[] bs = chunkLength == chunkSize ? chunk : Arrays.copyOf(chunk, chunkLength);
+            if (bs != chunk)
+                free.offer(chunk);
+            chunk = null;
+            chunkLength = 0;
+            put(bs);
+        }
+
+        private void put(byte[] bs) throws IOException {
+            try {
+                while (!chunks.offer(bs, 100, TimeUnit.MILLISECONDS))
+                    if (task.isDone()) {
+                        IOException e = consumerFailure();
+                        throw e != null ? e : new IOException("Consumer stopped before reading all bytes");
+                    }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the consumer");
+            }
+        }
+
+        // waits for the consumer to return => null if it succeeded
+        private IOException consumerFailure() {
+            try {
+                task.get();
+                return null;
+            } catch (ExecutionException e) {
+                return e.getCause() instanceof IOException
+                        ? (IOException) e.getCause()
+                        : new IOException(e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new InterruptedIOException("Interrupted while waiting for the consumer");
+            }
+        }
+
+        public void flush() throws IOException {
+            if (chunkLength > 0)
+                putChunk();
+        }
+
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+
+            flush();
+            put(EOF);
+
+            IOException e = consumerFailure();
+            if (e != null)
+                throw e;
+            if (is.unread())                                     // the consumer returned without reading till EOF
+                throw new IOException("Consumer stopped before reading all bytes");
+        }
+
+        private class ChunksInputStream extends InputStream {
+            private byte[] current;
+            private int position;
+
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+
+                while (current == null || position == current.length) {
+                    if (current == EOF)
+                        return -1;
+                    if (current != null && current.length == chunkSize)
+                        free.offer(current);
+                    try {
+                        current = chunks.take();
+                        position = 0;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the producer");
+                    }
+                }
+
+                int n = Math.min(len, current.length - position);
+                System.arraycopy(current, position, b, off, n);
+                position += n;
+                return n;
+            }
+
+            // => true if EOF wasn't reached and bytes are left, in `current` or queued. Called after the consumer returned
+            boolean unread() {
+                if (current == EOF)
+                    return false;
+                if (current != null && position < current.length)
+                    return true;
+                for (byte[] bs : chunks)
+                    if (bs.length > 0)
+                        return true;
+                return false;
+            }
+        }
+
+        public String toString() {
+            return "ConsumingOutputStream{chunkSize=" + chunkSize + ", queued=" + chunks.size() + ", closed=" + closed + '}';
+        }
+    }
+
+    // Splits written bytes into blocks of `blockSize` bytes, encodes up to `threads` of them concurrently with
+    // `encode` (fn [^bytes bs ^long length] ...) -> byte[], and writes encoded blocks to `os` in order. Each encoded
+    // block must be a self-contained member of the format (e.g. gzip members or bzip2 streams that standard tools
+    // decode when concatenated). Holds up to `2 * threads + 1` blocks in memory. `close()` closes `os`.
+    public static class ParallelBlockOutputStream extends OutputStream {
+        private final OutputStream os;
+        private final IFn encode;
+        private final int blockSize;
+        private final int threads;
+        private final ExecutorService executor;
+        private final Deque<Future<byte[]>> encoded = new ArrayDeque<>();
+
+        private byte[] block;                                     // block being written
+        private int blockLength;
+        private long blocks;                                      // number of submitted blocks
+        private boolean closed;
+
+        public ParallelBlockOutputStream(OutputStream os, IFn encode, int blockSize, int threads) {
+            if (blockSize < 1)
+                throw new IllegalArgumentException("Expected block size to be at least 1, but got: " + blockSize);
+            if (threads < 1)
+                throw new IllegalArgumentException("Expected threads to be at least 1, but got: " + threads);
+
+            this.os = assertNotNull(os, "os");
+            this.encode = assertNotNull(encode, "encode");
+            this.blockSize = blockSize;
+            this.threads = threads;
+            this.executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "uio-block-encode");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed)
+                throw new IOException("Stream is closed");
+
+            while (len > 0) {
+                if (block == null)
+                    block = new byte[blockSize];
+
+                int n = Math.min(len, blockSize - blockLength);
+                System.arraycopy(b, off, block, blockLength, n);
+                blockLength += n;
+                off += n;
+                len -= n;
+
+                if (blockLength == blockSize)
+                    submitBlock();
+            }
+        }
+
+        private void submitBlock() throws IOException {
+            byte[] bs = block;
+            int length = blockLength;
+            block = null;
+            blockLength = 0;
+            blocks++;
+
+            encoded.add(executor.submit(() -> (byte[]) encode.invoke(bs, (long) length)));
+
+            while (encoded.size() > 2 * threads)
+                writeEncoded();
+        }
+
+        private void writeEncoded() throws IOException {
+            Future<byte[]> f = encoded.poll();
+            try {
+                os.write(f.get());
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException
+                        ? (IOException) e.getCause()
+                        : new IOException(e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a block to be encoded");
+            }
+        }
+
+        // writes blocks that are already encoded, without cutting the current block short
+        public void flush() throws IOException {
+            while (!encoded.isEmpty() && encoded.peek().isDone())
+                writeEncoded();
+            os.flush();
+        }
+
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+
+            try {
+                if (blockLength > 0 || blocks == 0)                 // an empty input still gets one (empty) block
+                    submitBlock();
+                while (!encoded.isEmpty())
+                    writeEncoded();
+            } finally {
+                for (Future<byte[]> f : encoded)
+                    f.cancel(true);
+                encoded.clear();
+                executor.shutdownNow();
+                os.close();
+            }
+        }
+
+        public String toString() {
+            return "ParallelBlockOutputStream{blockSize=" + blockSize + ", threads=" + threads + ", blocks=" + blocks + '}';
+        }
+    }
+
+    // Decodes a concatenation of self-contained members (e.g. bzip2 streams written by `ParallelBlockOutputStream`
+    // or `pbzip2`) with up to `threads` members decoded concurrently, and returns decoded bytes in order.
+    // Members are found by `signature` (-1 matches any byte) and each one is decoded with `decode`
+    // (fn [^InputStream is] ...) -> InputStream. Up to `maxDecodedSize` bytes of a member are decoded ahead,
+    // and the rest is decoded while being read. If the input doesn't start with `signature`, or a member is longer
+    // than `maxMemberSize` (e.g. a file written by a single-threaded tool), the rest of the input is decoded
+    // sequentially with `decode`, which must support concatenated members.
+    public static class ParallelBlockInputStream extends InputStream {
+        private final InputStream is;
+        private final IFn decode;
+        private final int[] signature;
+        private final int maxMemberSize;
+        private final int maxDecodedSize;
+        private final int threads;
+        private final ExecutorService executor;
+        private final Deque<Future<InputStream>> decoded = new ArrayDeque<>();
+
+        private byte[] buffer;                                    // undecoded input, starts with `signature`
+        private int bufferLength;
+        private boolean split = true;                             // false after the input was handed over to `decode`
+        private boolean started;
+        private InputStream current;                              // member being read
+        private boolean closed;
+
+        public ParallelBlockInputStream(InputStream is, IFn decode, int[] signature, int maxMemberSize,
+                                        int maxDecodedSize, int threads) {
+            if (signature.length < 1 || maxMemberSize < signature.length)
+                throw new IllegalArgumentException("Expected max member size to be at least " + signature.length + ", but got: " + maxMemberSize);
+            if (maxDecodedSize < 1)
+                throw new IllegalArgumentException("Expected max decoded size to be at least 1, but got: " + maxDecodedSize);
+            if (threads < 1)
+                throw new IllegalArgumentException("Expected threads to be at least 1, but got: " + threads);
+
+            this.is = assertNotNull(is, "is");
+            this.decode = assertNotNull(decode, "decode");
+            this.signature = signature;
+            this.maxMemberSize = maxMemberSize;
+            this.maxDecodedSize = maxDecodedSize;
+            this.threads = threads;
+            this.buffer = new byte[maxMemberSize];
+            this.executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "uio-block-decode");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        private boolean matches(int i) {
+            for (int j = 0; j < signature.length; j++)
+                if (signature[j] != -1 && signature[j] != (buffer[i + j] & 0xff))
+                    return false;
+            return true;
+        }
+
+        // => false if the input has ended
+        private boolean fill() throws IOException {
+            int n = is.read(buffer, bufferLength, buffer.length - bufferLength);
+            if (n == -1)
+                return false;
+            bufferLength += n;
+            return true;
+        }
+
+        // submits the next member for decoding, or hands the rest of the input over to `decode`
+        private void submitNext() throws IOException {
+            if (!split)
+                return;
+
+            if (!started) {                                          // check the input starts with `signature`
+                started = true;
+                while (bufferLength < signature.length)
+                    if (!fill())
+                        break;
+                if (bufferLength < signature.length || !matches(0)) {
+                    decodeSequentially();
+                    return;
+                }
+            }
+
+            int from = 1;                                            // where to look for the next member
+            while (true) {
+                for (int i = from; i + signature.length <= bufferLength; i++)
+                    if (matches(i)) {
+                        submitMember(Arrays.copyOf(buffer, i));
+                        System.arraycopy(buffer, i, buffer, 0, bufferLength - i);
+                        bufferLength -= i;
+                        return;
+                    }
+
+                if (bufferLength == buffer.length) {                 // member is too long to be decoded in parallel
+                    decodeSequentially();
+                    return;
+                }
+
+                from = Math.max(1, bufferLength - signature.length + 1);
+                if (!fill()) {
+                    if (bufferLength > 0)
+                        submitMember(Arrays.copyOf(buffer, bufferLength));
+                    bufferLength = 0;
+                    buffer = null;
+                    split = false;
+                    return;
+                }
+            }
+        }
+
+        private void submitMember(byte[] member) {
+            decoded.add(executor.submit(() -> {
+                InputStream dis = (InputStream) decode.invoke(new ByteArrayInputStream(member));
+                byte[] bs = new byte[Math.min(maxDecodedSize, 64 * 1024)];
+                int n = 0;
+                while (true) {
+                    if (n == bs.length) {
+                        if (n == maxDecodedSize)                     // decode the rest while being read
+                            return new SequenceInputStream(new ByteArrayInputStream(bs, 0, n), dis);
+                        bs = Arrays.copyOf(bs, (int) Math.min(maxDecodedSize, 2L * n));
+                    }
+                    int r = dis.read(bs, n, bs.length - n);
+                    if (r == -1) {
+                        dis.close();
+                        return new ByteArrayInputStream(bs, 0, n);
+                    }
+                    n += r;
+                }
+            }));
+        }
+
+        private void decodeSequentially() throws IOException {
+            InputStream rest = new SequenceInputStream(new ByteArrayInputStream(buffer, 0, bufferLength), is);
+            decoded.add(CompletableFuture.completedFuture((InputStream) decode.invoke(rest)));
+            buffer = null;
+            bufferLength = 0;
+            split = false;
+        }
+
+        // => false if there are no more members
+        private boolean nextMember() throws IOException {
+            if (closed)
+                throw new IOException("Stream is closed");
+
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+
+            while (split && decoded.size() <= threads)
+                submitNext();
+
+            Future<InputStream> f = decoded.poll();
+            if (f == null)
+                return false;
+
+            try {
+                current = f.get();
+                return true;
+            } catch (ExecutionException e) {
+                close();
+                throw e.getCause() instanceof IOException
+                        ? (IOException) e.getCause()
+                        : new IOException(e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new InterruptedIOException("Interrupted while waiting for a block to be decoded");
+            }
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            while (true) {
+                if (current != null) {
+                    int n = current.read(b, off, len);
+                    if (n != -1)
+                        return n;
+                }
+                if (!nextMember())
+                    return -1;
+            }
+        }
+
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+
+            for (Future<InputStream> f : decoded)
+                f.cancel(true);
+            decoded.clear();
+            executor.shutdownNow();
+
+            try {
+                if (current != null)
+                    current.close();
+            } finally {
+                is.close();
+            }
+        }
+
+        public String toString() {
+            return "ParallelBlockInputStream{maxMemberSize=" + maxMemberSize + ", threads=" + threads + ", split=" + split + '}';
+        }
+    }
+
     private static <T> T assertNotNull(T t, String arg) {
         if (t == null)
             throw new NullPointerException("Argument `" + arg + "` can't be null");
@@ -0,0 +1,145 @@
+; Read-through cache on local disk, wrapping another scheme
+;
+; cache+s3://bucket/path/to/file.txt
+; cache+hdfs:///path/to/file.txt
+;
+; `from` reads fixed-size blocks of the wrapped URL once and keeps them on local disk. Blocks of an object are stored
+; in a directory named by a hash of its URL, size and version (ETag or mtime, see `stat`), so a changed object is never
+; read from stale blocks: its new blocks go to another directory, and the old ones are deleted by the size budget.
+; Blocks are written to temp files and moved in place, so several threads and processes can share one directory.
+; All other calls go to the wrapped URL as is.
+;
+; Config:
+;   :cache.dir        -- path of a local directory for blocks (default: "uio-cache" in `java.io.tmpdir`)
+;   :cache.block-size -- bytes (default: 8MB). Changing it leaves blocks of the previous size to the size budget
+;   :cache.max-size   -- total bytes of blocks, over which the least recently read ones are deleted (default: 10GB)
+;
+(ns uio.fs.cache
+  (:require [uio.impl :refer :all]
+            [clojure.string :as str])
+  (:import [java.io File FileInputStream FileNotFoundException InputStream SequenceInputStream]
+           [java.nio.file CopyOption Files StandardCopyOption]
+           [java.security MessageDigest]
+           [java.util Enumeration]
+           [java.util.concurrent.atomic AtomicLong]
+           [javax.xml.bind DatatypeConverter]
+           [uio.fs Streams$TakeNInputStream]))
+
+(def prefix "cache+")
+
+(def default-block-size (* 8 1024 1024))
+(def default-max-size   (* 10 1024 1024 1024))
+
+(defn inner-url [url]
+  (subs url (count prefix)))
+
+(defn- cache-dir ^File []
+  (File. (str (or (*config* :cache.dir)
+                  (File. (System/getProperty "java.io.tmpdir") "uio-cache")))))
+
+(defn- object-dir ^File [^File dir url {:keys [size version]} block-size]
+  (let [md (MessageDigest/getInstance "SHA-256")]
+    (File. dir (-> md
+                   (.digest (.getBytes (str url "\n" size "\n" version "\n" block-size) "UTF-8"))
+                   (DatatypeConverter/printHexBinary)
+                   (str/lower-case)))))
+
+; Size budget
+;
+; Blocks are touched (mtime) when read, so deleting blocks with the oldest mtime first deletes the least recently read.
+; The directory is scanned on the first download, then every time another 1/16 of `max-size` is downloaded.
+
+(def ^:private ^AtomicLong downloaded-since-scan (AtomicLong. (quot Long/MAX_VALUE 2)))
+
+(defn evict [^File dir max-size]
+  (let [files (->> (file-seq dir)
+                   (filter #(.isFile ^File %))
+                   (map (fn [^File f] [f (.length f) (.lastModified f)]))
+                   (sort-by #(nth % 2)))]
+    (loop [total (reduce + (map second files))
+           files files]
+      (when (and (< max-size total) (seq files))
+        (let [[^File f n] (first files)]
+          (.delete f)
+          (.delete (.getParentFile f))                      ; only deletes empty directories
+          (recur (- total n) (rest files)))))))
+
+(defn- downloaded! [dir max-size n]
+  (when (<= (quot max-size 16) (.addAndGet downloaded-since-scan n))
+    (.set downloaded-since-scan 0)
+    (evict dir max-size)))
+
+; Blocks
+
+; Threads of this process don't download the same block at the same time (processes might, but the result is the same)
+(def ^:private stripes (vec (repeatedly 64 #(Object.))))
+
+(defn- open-cached ^InputStream [^File f]
+  (try (let [is (FileInputStream. f)]
+         (.setLastModified f (System/currentTimeMillis))
+         is)
+       (catch FileNotFoundException _ nil)))
+
+(defn- open-block ^InputStream [url ^File dir ^File odir i offset length max-size]
+  (let [f (File. odir (str i))]
+    (or (open-cached f)
+        (locking (stripes (mod (hash (str f)) (count stripes)))
+          (or (open-cached f)
+              (do (.mkdirs odir)
+                  (let [tmp (File/createTempFile (str "block-" i ".") ".tmp" odir)]
+                    (try (let [n (with-open [^InputStream is (from url {:offset offset :length length})]
+                                   (Files/copy is (.toPath tmp) (into-array CopyOption [StandardCopyOption/REPLACE_EXISTING])))]
+                           (if (not= n length)
+                             (die (str "Expected " length " bytes at offset " offset ", but got " n " from " url)))
+
+                           (let [is (FileInputStream. tmp)]        ; opened before moving, so eviction can't take it
+                             (Files/move (.toPath tmp) (.toPath f) (into-array CopyOption [StandardCopyOption/ATOMIC_MOVE
+                                                                                           StandardCopyOption/REPLACE_EXISTING]))
+                             (downloaded! dir max-size n)
+                             is))
+                         (finally (.delete tmp))))))))))
+
+(defn cached-from [url args]
+  (let [opts       (get-opts default-opts-from url args)
+        inner      (inner-url url)
+        block-size (long (or (*config* :cache.block-size) default-block-size))
+        max-size   (or (*config* :cache.max-size) default-max-size)
+        dir        (cache-dir)
+        st         (stat inner)
+        odir       (object-dir dir inner st block-size)
+        size       (long (:size st))
+        start      (min size (or (:offset opts) 0))
+        end        (min size (+ start (min (- size start) (or (:length opts) Long/MAX_VALUE))))
+        *position  (atom start)]                              ; of the next block to open
+    (SequenceInputStream.
+      (reify Enumeration
+        (hasMoreElements [_] (< @*position end))
+        (nextElement [_]
+          (let [p     @*position
+                i     (quot p block-size)
+                b-off (* i block-size)
+                b-len (min block-size (- size b-off))
+                n     (min (- end p) (- (+ b-off b-len) p))
+                is    (open-block inner dir odir i b-off b-len max-size)]
+            (reset! *position (+ p n))
+            (Streams$TakeNInputStream. n (skip-fully is (- p b-off)))))))))
+
+(defn- ->cache-url [m]
+  (update m :url #(str prefix %)))
+
+(defn wrap
+  "Register `cache+<scheme>://` for `scheme` (a keyword, e.g. :s3)"
+  [scheme]
+  (let [k (keyword (str prefix (name scheme)))]
+    (defmethod from    k [url & args] (cached-from url args))
+    (defmethod to      k [url & args] (apply to      (inner-url url) args))
+    (defmethod size    k [url & args] (apply size    (inner-url url) args))
+    (defmethod stat    k [url & args] (apply stat    (inner-url url) args))
+    (defmethod exists? k [url & args] (apply exists? (inner-url url) args))
+    (defmethod delete  k [url & args] (apply delete  (inner-url url) args))
+    (defmethod mkdir   k [url & args] (apply mkdir   (inner-url url) args))
+    (defmethod attrs   k [url & args] (apply attrs   (inner-url url) args))
+    (defmethod ls      k [url & args] (map ->cache-url (apply ls (inner-url url) args)))))
+
+(doseq [scheme [:file :hdfs :http :https :mem :res :s3 :sftp]]
+  (wrap scheme))
@@ -5,19 +5,55 @@
 ;
 (ns uio.fs.file
   (:require [uio.impl :refer :all])
-  (:import [java.io File]
-           [java.nio.file Files Paths OpenOption LinkOption Path]
+  (:import [java.io File FileInputStream FileOutputStream]
+           [java.nio.channels FileChannel]
+           [java.nio.file Files Paths OpenOption LinkOption Path StandardOpenOption]
            [java.nio.file.attribute FileAttribute PosixFileAttributes PosixFilePermissions]
-           [java.util Date]))
+           [java.util Date]
+           [uio.fs Streams$MappedInputStream]))
 
-; TODO implement :offset + :length + assert all args are known
-(defmethod from    :file [url & args]   (-> url ->URI Paths/get (Files/newInputStream    (into-array OpenOption []))))
-(defmethod to      :file [url & args]   (-> url ->URI Paths/get (Files/newOutputStream   (into-array OpenOption []))))
+(defn ->file ^File [url] (-> url ->URI Paths/get .toFile))
+
+; :mmap -- read through memory-mapped regions instead of read() calls. Useful for large files
+(def default-opts-from-file (merge default-opts-from
+                                   {:mmap false}))
+
+; returns FileInputStream/FileOutputStream when possible, so `transfer` can move bytes with `FileChannel.transferTo`
+(defmethod from    :file [url & args]   (let [opts   (get-opts default-opts-from-file url args)
+                                              offset (or (:offset opts) 0)
+                                              length (:length opts)]
+                                          (if (:mmap opts)
+                                            (close-on-error (FileChannel/open (-> url ->URI Paths/get)
+                                                                              (into-array OpenOption [StandardOpenOption/READ]))
+                                                            #(Streams$MappedInputStream. % offset (or length Long/MAX_VALUE)))
+                                            (close-on-error (FileInputStream. (->file url))
+                                                            #(do (.position (.getChannel ^FileInputStream %) (long offset))
+                                                                 (take-length % length))))))
+
+(defmethod to      :file [url & args]   (FileOutputStream. (->file url)))
 (defmethod size    :file [url & args]   (-> url ->URI Paths/get (Files/size)))
+(defmethod stat    :file [url & args]   (let [p (-> url ->URI Paths/get)]
+                                          {:size    (Files/size p)
+                                           :version (str (.toMillis (Files/getLastModifiedTime p (into-array LinkOption []))))}))
 (defmethod exists? :file [url & args]   (-> url ->URI Paths/get (Files/exists            (into-array LinkOption []))))
 (defmethod delete  :file [url & args]   (-> url ->URI Paths/get (Files/deleteIfExists)))
 (defmethod mkdir   :file [url & args]   (-> url ->URI Paths/get (Files/createDirectories (into-array FileAttribute []))))
 
+; file -> file: the OS copies the bytes (e.g. `copy_file_range`/`sendfile` on Linux), without buffers in the JVM
+(defmethod copy    :file [from-url to-url & args]
+  (if (= :file (scheme-k from-url))
+    (with-open [ic (FileChannel/open (-> from-url ->URI Paths/get) (into-array OpenOption [StandardOpenOption/READ]))
+                oc (FileChannel/open (-> to-url   ->URI Paths/get) (into-array OpenOption [StandardOpenOption/WRITE
+                                                                                             StandardOpenOption/CREATE
+                                                                                             StandardOpenOption/TRUNCATE_EXISTING]))]
+      (let [size (.size ic)]
+        (loop [position 0]
+          (when (< position size)
+            (let [n (.transferTo ic position (- size position) oc)]
+              (if (pos? n)                                  ; 0 => the file got truncated while copying
+                (recur (+ position n))))))))
+    (copy-via-streams from-url to-url)))
+
 ; TODO assert all args are known
 (defmethod attrs   :file [url & [opts]] (Files/setPosixFilePermissions (Paths/get (->URI url))
                                                                                   (PosixFilePermissions/fromString (:perms opts))))
@@ -44,28 +80,24 @@
 
     (catch Exception e {:url file-url :error e})))
 
-(defn -ls [url recurse? attrs?]
+(defn list-dir [attrs? url]                                 ; => [[kv sub-dir-url-or-nil] ...]
   (try
-    (let [s (-> url ->URI Paths/get Files/list)]
+    (with-open [s (-> url ->URI Paths/get Files/list)]
       (->> (iterator-seq (.iterator s))
-           (sort-by #(.getFileName %))
-           (mapcat #(let [is-symlink (Files/isSymbolicLink %)
-                          is-dir     (Files/isDirectory % (into-array LinkOption []))
-                          file-url   (str (.toUri %))]      ; already ends with /
-                      (cons (f->kv file-url attrs? is-dir is-symlink %)
-                            (if (and is-dir
-                                     recurse?
-                                     (and (not is-symlink)))
-                              (lazy-seq (-ls file-url recurse? attrs?))))))
-
-           (close-when-realized-or-finalized #(.close s))))
+           (mapv #(let [is-symlink (Files/isSymbolicLink %)
+                        is-dir     (Files/isDirectory % (into-array LinkOption []))
+                        file-url   (str (.toUri %))]        ; already ends with /
+                    [(f->kv file-url attrs? is-dir is-symlink %)
+                     (if (and is-dir (not is-symlink))
+                       file-url)]))))
 
-    (catch Exception e [{:url url :error e}])))
+    (catch Exception e [[{:url url :error e} nil]])))
 
 (defmethod ls      :file [url & args] (let [opts (get-opts default-opts-ls url args)]
-                                        (-ls (normalize url)
-                                               (:recurse opts)
-                                               (:attrs opts))))
+                                        (list-tree (partial list-dir (:attrs opts))
+                                                   (normalize url)
+                                                   (:recurse opts)
+                                                   (:parallelism opts))))
 
 ; TODO consider removing or moving elsewhere
 (defn path->url   ^String [^String path]  (str (.toURI (File. path))))
@@ -15,15 +15,11 @@
             [uio.impl :refer :all])
   (:import [java.io IOException]
            [java.net URL]
-           [java.util Iterator Date]
+           [java.util Date]
            [org.apache.hadoop.conf Configuration]
-           [org.apache.hadoop.fs FileAlreadyExistsException FileStatus FileSystem Path RemoteIterator]
+           [org.apache.hadoop.fs FileAlreadyExistsException FileStatus FileSystem FileUtil FSDataInputStream Path]
            [org.apache.hadoop.security UserGroupInformation]))
 
-(deftype HdfsIterator [^FileSystem fs ^RemoteIterator ri] Iterator
-  (hasNext  [_] (.hasNext ri))
-  (next     [_] (.next ri)))
-
 (defn ->config [^String url]
   (let [c           (Configuration.)
         creds       (url->creds url)
@@ -65,25 +61,48 @@
 
     c))
 
-(defn with-hdfs [^String url fs->x]
-  (with-open [fs (FileSystem/newInstance (->config url))]
-    (fs->x fs)))
+; FileSystem is thread-safe, so instances are shared between calls with the same credentials.
+; This also saves re-reading site XMLs and repeating Kerberos logins in `->config`.
+(defn client-key [url]
+  [:hdfs (url->creds url)])
 
-(defmethod from    :hdfs [url & args] (wrap-is #(FileSystem/newInstance (->config url))
-                                               #(.open % (Path. (->URI url)))
-                                               #(.close %)))
+(defn ^FileSystem lease-hdfs [url]
+  (lease-client (client-key url)
+                #(FileSystem/newInstance (->config url))
+                #(.close %)))
 
-(defmethod to      :hdfs [url & args] (wrap-os #(FileSystem/newInstance (->config url))
+(defn release-hdfs [url fs]
+  (release-client (client-key url) fs))
+
+(defn with-hdfs [^String url fs->x]
+  (try-with #(lease-hdfs url)
+            fs->x
+            #(release-hdfs url %)))
+
+(defmethod from    :hdfs [url & args] (let [opts (get-opts default-opts-from url args)]
+                                        (wrap-is #(lease-hdfs url)
+                                                 #(close-on-error (.open % (Path. (->URI url)))
+                                                                  (fn [^FSDataInputStream is]
+                                                                    (.seek is (long (or (:offset opts) 0)))
+                                                                    (take-length is (:length opts))))
+                                                 #(release-hdfs url %))))
+
+(defmethod to      :hdfs [url & args] (wrap-os #(lease-hdfs url)
                                                #(.create % (Path. (->URI url)))
-                                               #(.close %)))
+                                               #(release-hdfs url %)))
 
 (defmethod exists? :hdfs [url & args] (with-hdfs url #(.exists % (Path. (->URI url)))))
 (defmethod size    :hdfs [url & args] (with-hdfs url #(.getLen (.getFileStatus % (Path. (->URI url))))))
+(defmethod stat    :hdfs [url & args] (with-hdfs url #(let [s (.getFileStatus % (Path. (->URI url)))]
+                                                        {:size    (.getLen s)
+                                                         :version (str (.getModificationTime s))})))
 (defmethod delete  :hdfs [url & args] (with-hdfs url #(do (and (not (.delete % (Path. (->URI url)) false))
                                                                (.exists % (Path. (->URI url)))
                                                                (die (str "Could not delete: got `false` and the file still exists: " url) ))
                                                           nil)))
 
+(defmethod delete-tree :hdfs [url & args] (with-hdfs url #(do (.delete % (Path. (->URI url)) true) nil)))
+
 (defmethod mkdir   :hdfs [url & args] (with-hdfs url #(do (or (try (.mkdirs % (Path. (->URI url)))
                                                                    (catch FileAlreadyExistsException _
                                                                      (die (str "A file with this name already exists: " url))))
@@ -93,6 +112,26 @@
                                                               (die (str "A file with this name already exists: " url)))
                                                           nil)))
 
+; HDFS has no server-side copy, so within the same cluster (same authority and credentials) use `FileUtil/copy`:
+; it still streams through this JVM, but reuses the shared FileSystem and HDFS buffer settings.
+; Only files are copied, like with other schemes (`FileUtil/copy` would copy a directory recursively).
+; Otherwise, the content is streamed with `from` + `to`.
+(defmethod copy    :hdfs [from-url to-url & args] (if (and (= :hdfs (scheme-k from-url))
+                                                           (= (.getAuthority (->URI from-url)) (.getAuthority (->URI to-url)))
+                                                           (= (url->creds from-url) (url->creds to-url)))
+                                                    (with-hdfs to-url #(do (or (.isFile (.getFileStatus % (Path. (->URI from-url))))
+                                                                               (die (str "Expected a file, but got a directory: " from-url)))
+                                                                           (or (FileUtil/copy %
+                                                                                               (Path. (->URI from-url))
+                                                                                               %
+                                                                                               (Path. (->URI to-url))
+                                                                                               false ; delete source
+                                                                                               true  ; overwrite
+                                                                                               (.getConf %))
+                                                                                (die (str "Could not copy " from-url " to " to-url)))
+                                                                           nil))
+                                                    (copy-via-streams from-url to-url)))
+
 (defn f->kv [attrs? ^FileStatus f]
   (merge {:url (str (.toUri (.getPath f))
                     (if (.isDirectory f)
@@ -113,20 +152,20 @@
                   (if (.isFile f)      {:replication (-> f .getReplication)
                                         :block-size  (-> f .getBlockSize)})))))
 
+(defn list-dir [^FileSystem fs attrs? ^Path p]                 ; => [[kv sub-dir-path-or-nil] ...]
+  (for [^FileStatus f (.listStatus fs p)]
+    [(f->kv attrs? f) (if (.isDirectory f)
+                        (.getPath f))]))
+
 (defmethod ls      :hdfs [url & args] (let [opts (get-opts default-opts-ls url args)
-                                            fs   (FileSystem/newInstance (->config url))
+                                            fs   (lease-hdfs url)
                                             p    (Path. (->URI url))]
-                                        (cond->> (->> (if (or (str/includes? url "?")
-                                                              (str/includes? url "*"))
-                                                        (.globStatus fs p)
-                                                        (->> (if (:recurse opts) ; RemoteIterator<LocatedFileStatus>
-                                                               (.listFiles fs p true)
-                                                               (.listStatusIterator fs p))
-                                                             (HdfsIterator. fs) ; Iterator<LocatedFileStatus>
-                                                             iterator-seq)) ; [FileStatus]
-                                                      (map (partial f->kv (:attrs opts))) ; [{kv}]
-                                                      (close-when-realized-or-finalized #(.close fs)))
-
-                                                 (:recurse opts)
-                                                 (intercalate-with-dirs))))
-
+                                        (close-when-realized-or-finalized
+                                          #(release-hdfs url fs)
+                                          (if (or (str/includes? url "?")
+                                                  (str/includes? url "*"))
+                                            (map (partial f->kv (:attrs opts)) (.globStatus fs p))
+                                            (list-tree (partial list-dir fs (:attrs opts)) ; sub-dirs are listed with the same `fs`
+                                                       p
+                                                       (:recurse opts)
+                                                       (:parallelism opts))))))
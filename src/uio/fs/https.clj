@@ -2,39 +2,135 @@
 ;
 ; http(s)://host[:port]/path/to/file.txt
 ;
+; Connections are kept alive and reused by `HttpURLConnection` (up to `http.maxConnections` idle ones per host, default 5)
+; as long as responses are read till the end and closed, not `disconnect`ed: so `size`, `exists?`, `stat` and `from`
+; on the same host don't open a new connection each.
+;
 (ns uio.fs.https
   (:require [uio.impl :refer :all])
-  (:import [java.net URL]))
+  (:import [java.io ByteArrayInputStream IOException InputStream]
+           [java.net HttpURLConnection URL]
+           [uio.fs Streams$ParallelRangeInputStream]))
 
-(defn http-https-size [url]
-  (let [c (.openConnection (URL. url))]
-    (try (.setRequestMethod c "HEAD")
-         (if-not (<= 200 (.getResponseCode c) 299)
-           (die (str "Couldn't get size: got non-2XX status code " (.getResponseCode c) " in response for URL: " url)))
+(defn- ^HttpURLConnection open-connection [url method]
+  (doto ^HttpURLConnection (.openConnection (URL. url))
+        (.setRequestMethod method)))
 
-         (if-not (.getHeaderField c "content-length")
-           (die (str "Couldn't get size: header `content-length` was not set, code " (.getResponseCode c) " for URL: " url)))
+; Reads the rest of a response and closes it, which returns the connection to the keep-alive cache
+(defn- release [^HttpURLConnection c]
+  (let [is (try (.getInputStream c)
+                (catch IOException _ (.getErrorStream c)))]  ; e.g. 404, with or without a body
+    (when is
+      (with-open [^InputStream is is]
+        (transfer is (->nil-os))))))
 
-         (.getContentLength c)
-         (finally (.disconnect c)))))
+; => {:code 200 :size 123 :version "etag or last-modified" :validator "..." :ranges? true},
+; :size is nil without `content-length`, :validator is a strong ETag or `last-modified` (for `If-Range`) or nil
+(defn- head [url]
+  (let [c    (open-connection url "HEAD")
+        etag (.getHeaderField c "etag")
+        lm   (.getHeaderField c "last-modified")]
+    (try {:code      (.getResponseCode c)
+          :size      (if (.getHeaderField c "content-length")
+                       (.getContentLengthLong c))
+          :version   (or etag lm)
+          :validator (if (and etag (not (.startsWith ^String etag "W/"))) ; weak ETags can't be used in `If-Range`
+                       etag
+                       lm)
+          :ranges?   (= "bytes" (.getHeaderField c "accept-ranges"))}
+         (finally (release c)))))
 
+(defn http-https-head [url]
+  (let [{:keys [code size version]} (head url)]
+    (if-not (<= 200 code 299)
+      (die (str "Couldn't get size: got non-2XX status code " code " in response for URL: " url)))
 
-(defn http-https-exists? [url]
-  (let [c (.openConnection (URL. url))]
-    (try (.setRequestMethod c "HEAD")
-         (cond (<= 200 (.getResponseCode c) 299) true
-               (=  404 (.getResponseCode c))     false
-               :else
-               (die (str "Got non-2XX and non-404 status code " (.getResponseCode c) " in response for URL: " url)))
+    (if-not size
+      (die (str "Couldn't get size: header `content-length` was not set, code " code " for URL: " url)))
+
+    {:size    size
+     :version version}))
+
+; => first byte position of `content-range: bytes 10-19/100`, or nil
+(defn- content-range-start [^HttpURLConnection c]
+  (if-let [[_ start] (re-find #"^bytes (\d+)-" (str (.getHeaderField c "content-range")))]
+    (Long/parseLong start)))
+
+; Requests a byte range with a `Range` header when `offset` or `length` is set.
+; With a `validator` (from `head`), also sends `If-Range`, so a changed file is fetched whole with 200, and fails:
+; segments of different versions must not be mixed
+(defn- open-range [url validator offset length]
+  (cond (and (zero? offset) (nil? length))
+        (let [c (open-connection url "GET")]
+          (if (<= 200 (.getResponseCode c) 299)
+            (.getInputStream c)
+            (do (release c)
+                (die (str "Got non-2XX status code " (.getResponseCode c) " in response for URL: " url)))))
+
+        (and length (not (pos? length)))
+        (ByteArrayInputStream. (byte-array 0))
 
-         (finally (.disconnect c)))))
+        :else
+        (let [c (open-connection url "GET")]
+          (.setRequestProperty c "Range" (str "bytes=" offset "-" (if length (+ offset length -1))))
+          (if validator
+            (.setRequestProperty c "If-Range" validator))
+          (case (.getResponseCode c)
+            206 (if (= offset (content-range-start c))
+                  (.getInputStream c)
+                  (do (release c)
+                      (die (str "Expected a range starting at " offset ", but got `content-range: "
+                                (.getHeaderField c "content-range") "` in response for URL: " url))))
+            416 (do (release c)                             ; offset is past the end
+                    (ByteArrayInputStream. (byte-array 0)))
+            200 (if validator
+                  (do (release c)
+                      (die (str "Expected a range of version " validator ", but got the whole file (changed?) in response for URL: " url)))
+                  (close-on-error (.getInputStream c)       ; the server ignored `Range`
+                                  #(-> % (skip-fully offset) (take-length length))))
+            (do (release c)
+                (die (str "Got non-2XX status code " (.getResponseCode c) " in response for URL: " url)))))))
+
+; :parallelism -- max number of byte ranges being downloaded concurrently, over separate connections (1 -- a single
+;                 connection). Only used when the server replies to HEAD with `accept-ranges: bytes` and `content-length`
+; :chunk-size  -- bytes per range. Uses up to (parallelism + 1) * chunk-size bytes of memory
+(def default-opts-from-http (merge default-opts-from
+                                   {:parallelism 1
+                                    :chunk-size  (* 8 1024 1024)}))
+
+(defn http-https-from [url args]
+  (let [opts   (get-opts default-opts-from-http url args)
+        offset (or (:offset opts) 0)]
+    (if (= 1 (:parallelism opts))
+      (open-range url nil offset (:length opts))
+      (let [{:keys [code size validator ranges?]} (head url)]
+        (if-not (and (<= 200 code 299) size ranges?)        ; can't split into ranges: read over one connection
+          (open-range url nil offset (:length opts))
+          (Streams$ParallelRangeInputStream. (bound-fn [o l] (open-range url validator o l))
+                                             offset
+                                             (max 0 (min (- size offset)
+                                                         (or (:length opts) Long/MAX_VALUE)))
+                                             (int (:chunk-size opts))
+                                             (int (:parallelism opts))))))))
+
+(defn http-https-size [url]
+  (:size (http-https-head url)))
+
+(defn http-https-exists? [url]
+  (let [{:keys [code]} (head url)]
+    (cond (<= 200 code 299) true
+          (=  404 code)     false
+          :else
+          (die (str "Got non-2XX and non-404 status code " code " in response for URL: " url)))))
 
-(defmethod from    :http  [url & args] (.openStream (URL. url)))
+(defmethod from    :http  [url & args] (http-https-from url args))
 (defmethod size    :http  [url & args] (http-https-size url))
+(defmethod stat    :http  [url & args] (http-https-head url))
 (defmethod exists? :http  [url & args] (http-https-exists? url))
 ; `to` and `delete` are not implemented for HTTP
 
-(defmethod from    :https [url & args] (.openStream (URL. url)))
+(defmethod from    :https [url & args] (http-https-from url args))
 (defmethod size    :https [url & args] (http-https-size url))
+(defmethod stat    :https [url & args] (http-https-head url))
 (defmethod exists? :https [url & args] (http-https-exists? url))
 ; `to` and `delete` are not implemented for HTTPS
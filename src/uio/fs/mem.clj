@@ -2,48 +2,115 @@
 ;
 ; mem://path/to/file.txt
 ;
+; Config:
+;   :mem.max-size -- total size of files in bytes, over which the least recently used files are deleted (default: none)
+;   :mem.direct   -- store files off heap, in direct `ByteBuffer`s (default: false)
+;
 (ns uio.fs.mem
   (:require [uio.impl :refer :all]
             [clojure.string :as str])
-  (:import [java.io ByteArrayInputStream ByteArrayOutputStream]))
+  (:import [java.nio ByteBuffer]
+           [java.util LinkedHashMap Map$Entry]
+           [java.util.concurrent ConcurrentNavigableMap ConcurrentSkipListMap]
+           [java.util.concurrent.atomic AtomicLong]
+           [uio.fs Streams$ByteBufferInputStream Streams$BytesOutputStream]))
+
+; url -> ByteBuffer (read-only, position 0), sorted by url for `ls` to scan ranges
+(def ^:private ^ConcurrentSkipListMap url->bb (ConcurrentSkipListMap.))
 
-(def ^:private *url->bytes (atom (sorted-map)))
+; url -> ByteBuffer, least recently used first; guards all changes of `url->bb` and `total-size`
+(def ^:private ^LinkedHashMap lru (LinkedHashMap. 16 0.75 true))
+
+(def ^:private ^AtomicLong total-size (AtomicLong.))
 
 (defn reset []
-  (reset! *url->bytes (sorted-map)))
+  (locking lru
+    (.clear url->bb)
+    (.clear lru)
+    (.set total-size 0)))
 
-; TODO implement offset + length
-(defmethod from    :mem [url & args] (ByteArrayInputStream. (or (@*url->bytes url)
-                                                                (die (str "File not found:" url)))))
+(defn- remove! [url]
+  (locking lru
+    (when-let [^ByteBuffer bb (.remove url->bb url)]
+      (.remove lru url)
+      (.addAndGet total-size (- (.remaining bb))))))
 
-(defmethod to      :mem [url & args] (wrap-os #(ByteArrayOutputStream.)
-                                              identity
-                                              #(swap! *url->bytes assoc url (.toByteArray %))))
+(defn- put! [url ^ByteBuffer bb max-size]
+  (locking lru
+    (remove! url)
+    (.put url->bb url bb)
+    (.put lru url bb)
+    (.addAndGet total-size (.remaining bb))
 
-(defmethod size    :mem [url & args] (or (some->> (@*url->bytes url)
-                                                  (count))
-                                         (die (str "File not found:" url))))
+    (if max-size                                            ; evict least recently used files, but not this one
+      (loop []
+        (let [^Map$Entry e (first lru)]
+          (when (and (< max-size (.get total-size))
+                     (not= url (.getKey e)))
+            (remove! (.getKey e))
+            (recur)))))))
 
-(defmethod exists? :mem [url & args] (some? (@*url->bytes url)))
+(defn- get-bb ^ByteBuffer [url]
+  (if-let [bb (.get url->bb url)]
+    (do (locking lru (.get lru url))                        ; mark as recently used
+        bb)
+    (die (str "File not found:" url))))
 
-(defmethod delete  :mem [url & args] (do (swap! *url->bytes dissoc url) nil))
+(defn- bytes->bb ^ByteBuffer [^Streams$BytesOutputStream os direct]
+  (let [bb (.toByteBuffer os)
+        n  (.remaining bb)]
+    (.asReadOnlyBuffer
+      (cond direct                                   (let [d (ByteBuffer/allocateDirect n)]
+                                                       (.put d bb)
+                                                       (.flip d)
+                                                       d)
+            (< (* 4 n) (* 3 (alength (.array bb))))  (ByteBuffer/wrap (.toByteArray os)) ; over 1/4 of the buffer is unused
+            :else                                    bb))))
 
-(defmethod ls      :mem [url & args] (let [opts     (get-opts default-opts-ls url args)
-                                           recurse  (:recurse opts)
-                                           base-dir (ensure-ends-with-delimiter (normalize url))]
+(defmethod from    :mem [url & args] (let [opts   (get-opts default-opts-from url args)
+                                           bb     (.duplicate (get-bb url))
+                                           offset (min (.remaining bb) (or (:offset opts) 0))
+                                           length (min (- (.remaining bb) offset) (or (:length opts) Long/MAX_VALUE))]
+                                       (.position bb (int offset))
+                                       (.limit bb (int (+ offset length)))
+                                       (Streams$ByteBufferInputStream. bb)))
 
-                                       (->> @*url->bytes
-                                            (filter (fn [[k _]] (str/starts-with? k base-dir)))
+(defmethod to      :mem [url & args] (let [max-size (*config* :mem.max-size)
+                                           direct   (*config* :mem.direct)]
+                                       (wrap-os #(Streams$BytesOutputStream.)
+                                                identity
+                                                #(put! url (bytes->bb % direct) max-size))))
 
-                                            (map (fn [[k v]]
-                                                   (let [next-delimiter-i (str/index-of k default-delimiter (count base-dir))]
-                                                     (if (or recurse
-                                                             (not next-delimiter-i))
-                                                       {:url k                                 :size (count v)}
-                                                       {:url (subs k 0 (inc next-delimiter-i)) :dir  true}))))
+(defmethod size    :mem [url & args] (.remaining (get-bb url)))
 
-                                            (distinct)
+(defmethod exists? :mem [url & args] (.containsKey url->bb url))
 
-                                            ((if recurse intercalate-with-dirs identity)))))
+(defmethod delete  :mem [url & args] (do (remove! url) nil))
+
+; => entries of `base-dir` (ending with a delimiter), starting from entry `e`, with files of subdirectories skipped
+(defn- ls-dir [^ConcurrentNavigableMap dir->bb ^String base-dir ^Map$Entry e]
+  (lazy-seq
+    (when e
+      (let [k ^String (.getKey e)]
+        (if-let [i (str/index-of k default-delimiter (count base-dir))]
+          (cons {:url (subs k 0 (inc i)) :dir true}
+                (ls-dir dir->bb base-dir (.ceilingEntry dir->bb (str (subs k 0 i) (char (inc (int \/))))))) ; next key after this subdirectory
+          (cons {:url k :size (.remaining ^ByteBuffer (.getValue e))}
+                (ls-dir dir->bb base-dir (.higherEntry dir->bb k))))))))
+
+(defmethod ls      :mem [url & args] (let [opts     (get-opts default-opts-ls url args)
+                                           base-dir (ensure-ends-with-delimiter (normalize url))
+                                           ; all urls starting with `base-dir`, e.g. "mem:///a/" (inclusive) .. "mem:///a0" (exclusive)
+                                           dir->bb  (.subMap url->bb
+                                                             base-dir
+                                                             true
+                                                             (str (subs base-dir 0 (dec (count base-dir))) (char (inc (int \/))))
+                                                             false)]
+                                       (if (:recurse opts)
+                                         (->> dir->bb
+                                              (map (fn [^Map$Entry e] {:url  (.getKey e)
+                                                                       :size (.remaining ^ByteBuffer (.getValue e))}))
+                                              (intercalate-with-dirs))
+                                         (ls-dir dir->bb base-dir (.firstEntry dir->bb)))))
 
 (defmethod mkdir   :mem [url & args] (do :nothing nil))
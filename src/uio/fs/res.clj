@@ -4,12 +4,15 @@
 ;     ^^^ triple slash
 ;
 (ns uio.fs.res
-  (:require [uio.impl :refer [die from host path]])
+  (:require [uio.impl :refer [close-on-error default-opts-from die from get-opts host path skip-fully take-length]])
   (:import (clojure.java.api Clojure)))
 
-; TODO implement offset + length
-(defmethod from :res [url & args] (do (if (host url)
-                                        (die "A resource should have no host e.g. (three slashes expected like 'res:///path/to/file.txt')" {:url url}))
-                                      (or (.getResourceAsStream Clojure (path url))
-                                          (die (str "Couldn't open input stream from a resource. "
-                                                    "It probably doesn't exist or belongs to another classloader: " url)))))
+; NOTE: resources can't seek, so :offset skips bytes (jar entries are decompressed while skipping)
+(defmethod from :res [url & args] (let [opts (get-opts default-opts-from url args)]
+                                    (if (host url)
+                                      (die "A resource should have no host e.g. (three slashes expected like 'res:///path/to/file.txt')" {:url url}))
+                                    (close-on-error (or (.getResourceAsStream Clojure (path url))
+                                                        (die (str "Couldn't open input stream from a resource. "
+                                                                  "It probably doesn't exist or belongs to another classloader: " url)))
+                                                    #(-> (skip-fully % (or (:offset opts) 0))
+                                                         (take-length (:length opts))))))
@@ -12,8 +12,10 @@
   (:import [com.amazonaws.auth BasicAWSCredentials STSAssumeRoleSessionCredentialsProvider AWSCredentialsProvider]
            [com.amazonaws.internal StaticCredentialsProvider]
            [com.amazonaws.services.s3 AmazonS3Client]
-           [com.amazonaws.services.s3.model ListObjectsRequest ObjectListing S3ObjectSummary GetObjectRequest CannedAccessControlList]
-           [uio.fs S3$S3OutputStream]))
+           [com.amazonaws.services.s3.model AbortMultipartUploadRequest CannedAccessControlList CompleteMultipartUploadRequest CopyObjectRequest CopyPartRequest
+                                            DeleteObjectsRequest MultiObjectDeleteException MultiObjectDeleteException$DeleteError GetObjectRequest InitiateMultipartUploadRequest ListObjectsV2Request ListObjectsV2Result ObjectMetadata S3ObjectSummary]
+           [java.util.concurrent Executors Future]
+           [uio.fs S3$S3OutputStream Streams$ParallelRangeInputStream]))
 
 (defn path-no-slash [^String url]
   (subs (path url) 1))
@@ -28,10 +30,22 @@
       (STSAssumeRoleSessionCredentialsProvider. creds ^String role-arn "uio-s3-session")
       (StaticCredentialsProvider. creds))))
 
+; AmazonS3Client is thread-safe, so clients are shared between calls with the same credentials
+(defn client-key [url]
+  [:s3 (url->creds url)])
+
+(defn ^AmazonS3Client lease-s3 [url]
+  (lease-client (client-key url)
+                #(AmazonS3Client. (->creds-provider url))
+                #(.shutdown %)))
+
+(defn release-s3 [url c]
+  (release-client (client-key url) c))
+
 (defn with-s3 [url client-bucket-key->x]
-  (try-with #(AmazonS3Client. (->creds-provider url))
+  (try-with #(lease-s3 url)
             #(client-bucket-key->x % (host url) (path-no-slash url))
-            #(.shutdown %)))
+            #(release-s3 url %)))
 
 ; See https://docs.aws.amazon.com/AmazonS3/latest/dev/acl-overview.html?shortFooter=true#canned-acl
 (defn acl->enum [^String s]
@@ -41,33 +55,166 @@
     (or (m s)
         (die (str "Couldn't find canned ACL " (pr-str s) ". Available options are: " (str/join ", " (map pr-str (sort (keys m)))))))))
 
-(defmethod from    :s3 [url & args] (let [opts  (get-opts default-opts-from url args)
-                                          start (or (:offset opts) 0)
-                                          end   (if (:length opts)
-                                                  (+ start
-                                                     (:length opts))
-                                                  (dec (Long/MAX_VALUE)))]
-                                      (wrap-is #(AmazonS3Client. (->creds-provider url))
-                                               #(.getObjectContent
-                                                  (.getObject %
-                                                              (.withRange
-                                                                (GetObjectRequest. (host url) (path-no-slash url))
-                                                                start
-                                                                end)))
-                                               #(.shutdown %))))
-
-(defmethod to      :s3 [url & [opts]] (wrap-os #(AmazonS3Client. (->creds-provider url))
-                                               #(S3$S3OutputStream. % (host url) (path-no-slash url) (some-> opts :acl acl->enum))
-                                               #(.shutdown %)))
+(defn open-range [url ^long offset length]                 ; length: bytes or nil (till the end)
+  (if (and length (zero? length))
+    (bytes->is (byte-array 0))                              ; S3 would return the whole object for an empty range
+    (wrap-is #(lease-s3 url)
+             #(.getObjectContent
+                (.getObject %
+                            (.withRange
+                              (GetObjectRequest. (host url) (path-no-slash url))
+                              offset
+                              (if length
+                                (dec (+ offset length))     ; inclusive
+                                (dec (Long/MAX_VALUE))))))
+             #(release-s3 url %))))
+
+; :parallelism -- max number of byte ranges being downloaded concurrently (1 -- read over a single connection)
+; :chunk-size  -- bytes per range. Uses up to (parallelism + 1) * chunk-size bytes of memory
+(def default-opts-from-s3 (merge default-opts-from
+                                 {:parallelism 1
+                                  :chunk-size  (* 8 1024 1024)}))
+
+(defmethod from    :s3 [url & args] (let [opts   (get-opts default-opts-from-s3 url args)
+                                          offset (or (:offset opts) 0)]
+                                      (if (= 1 (:parallelism opts))
+                                        (open-range url offset (:length opts))
+                                        (let [size   (size url)
+                                              length (min (- size offset)
+                                                          (or (:length opts) Long/MAX_VALUE))]
+                                          (Streams$ParallelRangeInputStream. (bound-fn [o l] (open-range url o l))
+                                                                             offset
+                                                                             (max 0 length)
+                                                                             (int (:chunk-size opts))
+                                                                             (int (:parallelism opts)))))))
+
+; :part-size   -- bytes per part, at least 5MB. An object can have up to 10000 parts (e.g. 5MB parts => 50GB max)
+; :parallelism -- max number of parts being uploaded concurrently. Uses up to (parallelism + 1) * part-size bytes of memory
+(def default-opts-to {:acl         nil
+                      :part-size   S3$S3OutputStream/MIN_PART_SIZE
+                      :parallelism 1})
+
+(defmethod to      :s3 [url & args] (let [opts (get-opts default-opts-to url args)]
+                                      (wrap-os #(lease-s3 url)
+                                               #(S3$S3OutputStream. %
+                                                                    (host url)
+                                                                    (path-no-slash url)
+                                                                    (some-> opts :acl acl->enum)
+                                                                    (int (:part-size opts))
+                                                                    (int (:parallelism opts)))
+                                               #(release-s3 url %))))
 
 (defmethod exists? :s3 [url & args] (with-s3 url (fn [c b k] (.doesObjectExist c b k))))
 (defmethod size    :s3 [url & args] (with-s3 url (fn [c b k] (.getContentLength (.getObjectMetadata c b k)))))
+(defmethod stat    :s3 [url & args] (with-s3 url (fn [c b k] (let [m (.getObjectMetadata c b k)]
+                                                               {:size    (.getContentLength m)
+                                                                :version (.getETag m)
+                                                                :etag    (.getETag m)}))))
 (defmethod delete  :s3 [url & args] (with-s3 url (fn [c b k] (.deleteObject c b k))))
 
+; Batch delete: up to `delete-objects-max-keys` keys per DeleteObjects request, up to :parallelism requests at a time
+(def delete-objects-max-keys 1000)                         ; required maximum by S3 API
+
+(defn- delete-objects [urls]                                ; urls -- of one bucket and credentials
+  (with-s3 (first urls)
+           (fn [^AmazonS3Client c b _]
+             (try (.deleteObjects c (-> (DeleteObjectsRequest. b)
+                                        (.withKeys ^"[Ljava.lang.String;" (into-array String (map path-no-slash urls)))
+                                        (.withQuiet true)))
+                  (catch MultiObjectDeleteException e
+                    (let [^MultiObjectDeleteException$DeleteError de (first (.getErrors e))]
+                      (die (str "Couldn't delete " (count (.getErrors e)) " of " (count urls) " objects, e.g. "
+                                (bucket-key->url b (.getKey de)) ": " (.getCode de) " " (.getMessage de))
+                           e)))))))
+
+(defmethod delete-batch :s3 [urls opts] (run-concurrently (:parallelism opts)
+                                                          (fn [batch]
+                                                            (doseq [us (vals (group-by (juxt host client-key) batch))]
+                                                              (delete-objects us)))
+                                                          (partition-all delete-objects-max-keys urls)))
+
+; S3 has no directories: deletes all keys under `url` (as a prefix ending with a delimiter)
+(defmethod delete-tree :s3 [url & args] (let [opts (get-opts default-opts-batch url args)
+                                              urls (->> (ls (ensure-ends-with-delimiter url) {:recurse true})
+                                                        (remove :dir)
+                                                        (map :url))]
+                                          (if (seq urls)
+                                            (delete-batch urls opts))))
+
 (defmethod mkdir   :s3 [url & args] (do :nothing nil))      ; S3 doesn't support directories
 
-(defn -ls [c b k url recurse? attrs? delimiter marker]
-  (let [^ObjectListing l (.listObjects c (ListObjectsRequest. b k marker (if recurse? nil delimiter) nil))]
+; Server-side copy
+;
+; When both URLs are on S3 and share credentials, bytes don't leave S3: objects up to 5GB are copied
+; with a single CopyObject, larger ones with UploadPartCopy of `copy-part-size` parts (up to `copy-parallelism`
+; at a time), keeping Content-Type & co. and user metadata as CopyObject does. Otherwise, the content is streamed
+; with `from` + `to`.
+;
+(def max-single-copy-size (* 5 1024 1024 1024))            ; a limit of CopyObject in S3 API
+(def copy-part-size       (* 512 1024 1024))
+(def copy-parallelism     8)
+
+; Headers of the source that the destination should keep (not ETag, Content-Length and other ones S3 sets itself).
+; Only set ones: the SDK sends every header it has, and fails on nil values
+(defn- ->copied-metadata ^ObjectMetadata [^ObjectMetadata md]
+  (let [m (ObjectMetadata.)]
+    (some->> (.getContentType md)        (.setContentType m))
+    (some->> (.getContentEncoding md)    (.setContentEncoding m))
+    (some->> (.getContentDisposition md) (.setContentDisposition m))
+    (some->> (.getContentLanguage md)    (.setContentLanguage m))
+    (some->> (.getCacheControl md)       (.setCacheControl m))
+    (some->> (.getHttpExpiresDate md)    (.setHttpExpiresDate m))
+    (.setUserMetadata m (.getUserMetadata md))
+    m))
+
+(defn copy-multipart [^AmazonS3Client c sb sk db dk ^ObjectMetadata md]
+  (let [size      (.getContentLength md)
+        part-size (max copy-part-size
+                       (long (Math/ceil (/ size 10000.0))))   ; 10000 -- max number of parts
+        upload-id (.getUploadId (.initiateMultipartUpload c (InitiateMultipartUploadRequest. db dk (->copied-metadata md))))
+        pool      (Executors/newFixedThreadPool copy-parallelism)]
+    (try
+      (let [parts (->> (range 0 size part-size)
+                       (map-indexed (fn [i offset]
+                                      (.submit pool ^Callable
+                                               #(.getPartETag
+                                                  (.copyPart c (-> (CopyPartRequest.)
+                                                                   (.withSourceBucketName sb)
+                                                                   (.withSourceKey sk)
+                                                                   (.withDestinationBucketName db)
+                                                                   (.withDestinationKey dk)
+                                                                   (.withUploadId upload-id)
+                                                                   (.withPartNumber (int (inc i)))
+                                                                   (.withFirstByte offset)
+                                                                   (.withLastByte (dec (min size (+ offset part-size))))))))))
+                       doall
+                       (mapv #(.get ^Future %)))]
+        (.completeMultipartUpload c (CompleteMultipartUploadRequest. db dk upload-id parts)))
+      (catch Throwable t
+        (.abortMultipartUpload c (AbortMultipartUploadRequest. db dk upload-id))
+        (throw t))
+      (finally
+        (.shutdownNow pool)))))
+
+(defmethod copy    :s3 [from-url to-url & args] (if (and (= :s3 (scheme-k from-url))
+                                                         (= (url->creds from-url) (url->creds to-url)))
+                                                  (with-s3 to-url
+                                                           (fn [c db dk]
+                                                             (let [sb   (host from-url)
+                                                                   sk   (path-no-slash from-url)
+                                                                   md   (.getObjectMetadata c sb sk)]
+                                                               (if (<= (.getContentLength md) max-single-copy-size)
+                                                                 (.copyObject c (CopyObjectRequest. sb sk db dk))
+                                                                 (copy-multipart c sb sk db dk md))
+                                                               nil)))
+                                                  (copy-via-streams from-url to-url)))
+
+(defn -ls [^AmazonS3Client c b k recurse? attrs? token]   ; token: nil => list from beginning
+  (let [^ListObjectsV2Result l (.listObjectsV2 c (-> (ListObjectsV2Request.)
+                                                     (.withBucketName b)
+                                                     (.withPrefix k)
+                                                     (.withDelimiter (if recurse? nil default-delimiter))
+                                                     (.withContinuationToken token)))]
     (concat
       ; this page
       (sort-by :url                                      ; move dirs between files. S3 returns 1000 files per batch + dirs, so it's ok to sort in memory
@@ -77,38 +224,40 @@
                    (cond->  {:url  (bucket-key->url (.getBucketName s) (.getKey s))
                              :size (.getSize s)}
                             attrs?
-                            (merge {:modified (.getLastModified s)})))
+                            (merge {:modified (.getLastModified s)
+                                    :etag     (.getETag s)})))
                  ; dirs
                  (for [^String s (.getCommonPrefixes l)]
-                   {:url (cond-> (bucket-key->url b s)
-                                 recurse?
-                                 (ensure-ends-with-delimiter))
+                   {:url (ensure-ends-with-delimiter (bucket-key->url b s))
                     :dir true})))
 
       ; next page
       (if (.isTruncated l)
-        (lazy-seq (-ls c
-                       b
-                       k
-                       url
-                       recurse?
-                       attrs?
-                       delimiter
-                       (.getNextMarker l)))))))
+        (lazy-seq (-ls c b k recurse? attrs? (.getNextContinuationToken l)))))))
 
+(defn list-dir [c attrs? dir-url]                           ; => [[kv sub-dir-url-or-nil] ...]
+  (->> (-ls c (host dir-url) (path-no-slash dir-url) false attrs? nil)
+       (remove #(= dir-url (:url %)))                       ; "directory" placeholder objects (e.g. created by the S3 console)
+       (map #(vector % (if (:dir %) (:url %))))))
+
+; :recurse + :parallelism 1 -- list all keys under the prefix page by page (memory-light)
+; :recurse + :parallelism N -- list common prefixes ("dirs") concurrently. Faster for wide trees, but each dir is listed fully in memory
 (defmethod ls      :s3 [url & args] (let [opts (get-opts default-opts-ls url args)
-                                          c    (AmazonS3Client. (->creds-provider url))
-                                          b    (host url)
-                                          k    (path-no-slash (ensure-ends-with-delimiter url))]
-                                      (cond->> (close-when-realized-or-finalized
-                                                 #(.shutdown c)
-                                                 (-ls c
-                                                      b
-                                                      k
-                                                      (ensure-ends-with-delimiter url)
-                                                      (:recurse opts)
-                                                      (:attrs opts)
-                                                      default-delimiter
-                                                      nil)) ; nil => list from beginning
-
-                                               (:recurse opts) (intercalate-with-dirs))))
+                                          c    (lease-s3 url)
+                                          dir  (ensure-ends-with-delimiter url)]
+                                      (close-when-realized-or-finalized
+                                        #(release-s3 url c)
+                                        (if (and (:recurse opts)
+                                                 (< 1 (:parallelism opts)))
+                                          (list-tree (partial list-dir c (:attrs opts))
+                                                     dir
+                                                     true
+                                                     (:parallelism opts))
+                                          (cond->> (-ls c
+                                                        (host dir)
+                                                        (path-no-slash dir)
+                                                        (:recurse opts)
+                                                        (:attrs opts)
+                                                        nil)
+
+                                                   (:recurse opts) (intercalate-with-dirs))))))
@@ -17,10 +17,12 @@
   (:require [clojure.string :as str]
             [uio.fs.file :as file]
             [uio.impl :refer :all])
-  (:import [com.jcraft.jsch JSch Channel ChannelSftp ChannelSftp$LsEntry Session SftpException]
-           [java.io ByteArrayInputStream]
+  (:import [com.jcraft.jsch JSch Channel ChannelSftp ChannelSftp$LsEntry Session SftpException SftpProgressMonitor]
+           [java.io ByteArrayInputStream InputStream]
+           [java.util.concurrent Semaphore TimeUnit]
            [java.util.zip GZIPOutputStream GZIPInputStream]
-           [java.util Date]))
+           [java.util Date]
+           [uio.fs Streams$ConsumingOutputStream]))
 
 (def default-timeout-ms 10000)
 
@@ -42,7 +44,7 @@
            footer)
       (die "Got a private key without line separators, tried to reformat it, but failed to match the pattern"))))
 
-(defn ->session+channel [url]
+(defn ->session [url]
   (let [{:keys [user
                 known-hosts
                 pass
@@ -64,40 +66,231 @@
 
         s (.getSession j user (host url) (or (port url) 22)) ; ^Session
         _ (.setTimeout s default-timeout-ms)
+        _ (.setDaemonThread s true)                         ; pooled sessions shouldn't keep JVM from exiting
         _ (some->> (.setPassword s pass))
-        _ (.connect s)
+        _ (.connect s)]
+    s))
 
-        c (doto (.openChannel s "sftp")                     ; ^Channel
-                (.connect default-timeout-ms))]
-    [s c]))
+(defn ->channel [^Session s]
+  (doto (.openChannel s "sftp")                             ; ^Channel
+        (.connect default-timeout-ms)))
+
+; Session pool
+;
+; Opening a session costs a full SSH handshake + auth, so sessions are pooled per host, port and credentials.
+; Each session carries up to `max-channels-per-session` SFTP channels (OpenSSH allows 10 by default),
+; and up to `max-sessions-per-host` sessions are opened, which caps concurrent channels per host.
+; Channels are reused between calls, broken sessions are dropped and idle ones are closed after `session-idle-ms`.
+; A caller waits up to `channel-wait-ms` for a channel, then fails: e.g. when it keeps a stream of one host open
+; while opening another one there, and other threads do the same. `with-channels` leases several channels at once.
+;
+(def max-sessions-per-host    4)
+(def max-channels-per-session 8)
+(def session-idle-ms          60000)
+(def channel-wait-ms          (* 5 60 1000))
+
+(def ^:private pool-lock (Object.))
+(def ^:private *k->pool (atom {}))                         ; k -> {:permits Semaphore
+                                                            ;       :sessions {id {:session (delay ...) :in-use n :idle [channels] :used ms}}}
+
+(defn- pool-key [url]
+  [(host url) (or (port url) 22) (url->creds url)])
+
+(defn- connected? [e]
+  (and (realized? (:session e))
+       (try (.isConnected ^Session @(:session e))
+            (catch Throwable _ false))))                    ; the session failed to connect
+
+(defn- close-session [{:keys [session idle]}]
+  (doseq [^Channel c idle]
+    (.disconnect c))
+  (if (realized? session)
+    (try (.disconnect ^Session @session)
+         (catch Throwable _ nil))))
+
+; must be called while holding `pool-lock`
+(defn- evict-sessions [now]
+  (doall (for [[k {:keys [sessions]}] @*k->pool
+               [id e] sessions
+               :when (and (zero? (:in-use e))
+                          (or (not (connected? e))
+                              (< session-idle-ms (- now (:used e)))))]
+           (do (swap! *k->pool update-in [k :sessions] dissoc id)
+               e))))
+
+(defn- sweep-sessions []
+  (run! close-session (locking pool-lock
+                        (evict-sessions (System/currentTimeMillis)))))
+
+(defn close-sessions []
+  (run! close-session (locking pool-lock
+                        (let [es (mapcat (comp vals :sessions) (vals @*k->pool))]
+                          (reset! *k->pool {})
+                          es))))
+
+(register-pool ::sessions sweep-sessions close-sessions)
+
+; must be called while holding `pool-lock`
+; => [id session-delay idle-channel-or-nil]
+(defn- reserve-channel [k url]
+  (let [sessions (get-in @*k->pool [k :sessions])
+        broken   (filter (fn [[_ e]] (and (realized? (:session e))
+                                           (not (connected? e))))
+                         sessions)
+        _        (doseq [[id e] broken]
+                   (if (zero? (:in-use e))
+                     (swap! *k->pool update-in [k :sessions] dissoc id)))
+        live     (remove (set broken) sessions)
+        [id e]   (or (first (filter (fn [[_ e]] (seq (:idle e))) live))
+                     (first (filter (fn [[_ e]] (< (:in-use e) max-channels-per-session)) live))
+                     [(Object.) {:session (delay (->session url))
+                                 :in-use  0
+                                 :idle    []}])
+        c        (peek (:idle e))]
+    (swap! *k->pool assoc-in [k :sessions id] (-> e
+                                                  (update :in-use inc)
+                                                  (update :idle #(if (seq %) (pop %) %))
+                                                  (assoc :used (System/currentTimeMillis))))
+    [id (:session e) c]))
+
+(defn release-channel [{:keys [k id ^Semaphore permits ^Channel channel]} reuse?]
+  (let [evicted (locking pool-lock
+                  (when-let [e (get-in @*k->pool [k :sessions id])]
+                    (let [reuse? (and reuse?
+                                      channel
+                                      (.isConnected channel)
+                                      (connected? e))]
+                      (if-not reuse?
+                        (some-> channel .disconnect))
+                      (swap! *k->pool assoc-in [k :sessions id] (-> e
+                                                                    (update :in-use dec)
+                                                                    (update :idle #(if reuse? (conj % channel) %))
+                                                                    (assoc :used (System/currentTimeMillis))))
+                      (evict-sessions (System/currentTimeMillis)))))]
+    (.release permits)                                      ; `k` might be gone by now, see `close-sessions`
+    (run! close-session evicted)))
+
+(defn- permits-of ^Semaphore [k]
+  (locking pool-lock
+    (or (get-in @*k->pool [k :permits])
+        (let [p (Semaphore. (* max-sessions-per-host max-channels-per-session) true)]
+          (swap! *k->pool assoc-in [k :permits] p)
+          p))))
+
+(defn- acquire-permits [^Semaphore permits n url]
+  (if-not (try (.tryAcquire permits (int n) channel-wait-ms TimeUnit/MILLISECONDS)
+               (catch InterruptedException e
+                 (.interrupt (Thread/currentThread))
+                 (throw e)))
+    (die (str "Couldn't get " n " SFTP channel(s) to " (host url) " in " channel-wait-ms " ms: all "
+              (* max-sessions-per-host max-channels-per-session) " are in use. Are streams of this host kept open "
+              "while opening others?"))))
+
+; with a permit of `permits` already taken, which is released if leasing fails
+(defn- lease-acquired-channel [url k ^Semaphore permits]
+  (let [[id session c] (try (locking pool-lock (reserve-channel k url))
+                            (catch Throwable t (.release permits) (throw t)))
+        lease          {:k k :id id :permits permits}]
+    (try (let [s @session
+               c (if (and c (.isConnected ^Channel c))
+                   c
+                   (do (some-> ^Channel c .disconnect)
+                       (->channel s)))]
+           (assoc lease :session s :channel c))
+         (catch Throwable t
+           (release-channel lease false)
+           (throw t)))))
+
+(defn lease-channel
+  "Take a connected SFTP channel from the pool. Return it with `(release-channel lease)`.
+   => {:session Session :channel ChannelSftp ...}"
+  [url]
+  (let [k       (pool-key url)
+        permits (permits-of k)]
+    (acquire-permits permits 1 url)
+    (lease-acquired-channel url k permits)))
 
 (defn with-channel [url c->x]
-  (try-with #(->session+channel url)
-            (fn [[_ c]] (c->x c))
-            (fn [[s c]] (.disconnect c)
-                        (.disconnect s))))
-
-; TODO implement offset + length
-(defmethod from    :sftp [url & args] (wrap-is #(->session+channel url)
-                                               (fn [[s c]] (.get c (path url)))
-                                               (fn [[s c]] (.disconnect c)
-                                                           (.disconnect s))))
+  (try-with #(lease-channel url)
+            #(c->x (:channel %))
+            #(release-channel % true)))
+
+(defn with-channels
+  "Same as `with-channel`, but with a channel per URL. Permits of each host are taken at once, so threads holding
+   one channel of a host never wait for another one of the same host held by each other"
+  [urls cs->x]
+  (let [ks      (mapv pool-key urls)
+        ps      (mapv permits-of ks)
+        groups  (->> (map vector ks ps urls)
+                     (group-by first)
+                     (sort-by (comp str key)))                ; same order in all threads, when hosts differ
+        *taken  (atom [])
+        *leases (atom [])]
+    (try (doseq [[_ [[_ p url] :as xs]] groups]
+           (acquire-permits p (count xs) url)
+           (swap! *taken conj [p (count xs)]))
+         (catch Throwable t
+           (doseq [[^Semaphore p n] @*taken]
+             (.release p (int n)))
+           (throw t)))
+    (try (doseq [[url k p] (map vector urls ks ps)]
+           (swap! *leases conj (lease-acquired-channel url k p)))
+         (cs->x (mapv :channel @*leases))
+         (catch Throwable t
+           (doseq [^Semaphore p (drop (inc (count @*leases)) ps)] ; not leased yet (a failed lease releases its own)
+             (.release p))
+           (throw t))
+         (finally
+           (run! #(release-channel % true) @*leases)))))
+
+(defmethod from    :sftp [url & args] (let [opts (get-opts default-opts-from url args)]
+                                        (wrap-is #(lease-channel url)
+                                                 #(take-length (.get ^ChannelSftp (:channel %)   ; reads from offset, nothing is skipped over the wire
+                                                                     (path url)
+                                                                     ^SftpProgressMonitor (identity nil)
+                                                                     (long (or (:offset opts) 0)))
+                                                               (:length opts))
+                                                 #(release-channel % true))))
+; :mode -- :stream    -- send bytes from a dedicated thread while they're being written (up to 1MB is buffered in memory)
+;          :temp-file -- store bytes in a local gzipped temp file, and send it when the stream is closed
+(def default-opts-to {:mode :stream})
+
+(def stream-chunk-size  (* 64 1024))
+(def stream-queue-size  16)
+
 ; TODO create all parent dirs?
 ; TODO include url in exception (all methods)
-(defmethod to      :sftp [url & args] (wrap-os #(file/->temp-file "uio-sftp-" "-temp.gz")
-                                               #(GZIPOutputStream. (to %))
-                                               #(try
-                                                  ; workaround to Jsch concurrency bug
-                                                  ; store in a local gzipped file before sending over SFTP
-                                                  (with-channel url (fn [c]
-                                                                      (.put c
-                                                                            (GZIPInputStream. (from %))
-                                                                            (path url))))
-                                                  (finally (delete %)))))
+(defmethod to      :sftp [url & args] (let [opts (get-opts default-opts-to url args)]
+                                        (case (:mode opts)
+                                          ; JSch isn't safe when one channel is written from the caller's thread,
+                                          ; so the caller only fills a queue, and `.put` reads it on its own thread
+                                          :stream    (Streams$ConsumingOutputStream. (bound-fn [is]
+                                                                                       (with-channel url #(.put ^ChannelSftp %
+                                                                                                                ^InputStream is
+                                                                                                                ^String (path url))))
+                                                                                     "uio-sftp-put"
+                                                                                     stream-chunk-size
+                                                                                     stream-queue-size)
+
+                                          :temp-file (wrap-os #(file/->temp-file "uio-sftp-" "-temp.gz")
+                                                              #(GZIPOutputStream. (to %))
+                                                              #(try
+                                                                 ; workaround to Jsch concurrency bug
+                                                                 ; store in a local gzipped file before sending over SFTP
+                                                                 (with-channel url (fn [c]
+                                                                                     (.put c
+                                                                                           (GZIPInputStream. (from %))
+                                                                                           (path url))))
+                                                                 (finally (delete %))))
+
+                                          (die (str "Unsupported :mode " (pr-str (:mode opts)) ". Supported modes are: :stream, :temp-file")))))
 
 (defmethod size    :sftp [url & args] (with-channel url #(.getSize (.stat % (path url)))))
+(defmethod stat    :sftp [url & args] (with-channel url #(let [a (.stat % (path url))]
+                                                           {:size    (.getSize a)
+                                                            :version (str (.getMTime a))})))
 
-(defmethod exists? :sftp [url & args] (try (size url)
+(defmethod exists? :sftp [url & args] (try (with-channel url #(.stat % (path url)))
                                            true
                                            (catch SftpException e
                                              (if (= ChannelSftp/SSH_FX_NO_SUCH_FILE (.id e))
@@ -112,11 +305,14 @@
 (defmethod mkdir   :sftp [url & args]      (with-channel url #(rethrowing (str "Could not create directory at " url)
                                                                           (.mkdir % (path url)))))
 
-(defmethod copy    :sftp [from-url to-url & args] (try-with #(->session+channel to-url)
-                                                            (fn [[_ c]] (with-open [is (from from-url)]
-                                                                          (.put c is (path to-url))))
-                                                            (fn [[s c]] (.disconnect c)
-                                                              (.disconnect s))))
+(defmethod copy    :sftp [from-url to-url & args] (if (= :sftp (scheme-k from-url))
+                                                    (with-channels [from-url to-url]
+                                                                   (fn [[^ChannelSftp fc ^ChannelSftp tc]]
+                                                                     (with-open [is (.get fc (path from-url))]
+                                                                       (.put tc is (path to-url)))))
+                                                    (with-channel to-url
+                                                                  (fn [c] (with-open [is (from from-url)]
+                                                                            (.put c is (path to-url)))))))
 
 (defn f->kv [c uid->name gid->name file-url attrs? ^ChannelSftp$LsEntry f]
   (let [a      (.getAttrs f)
@@ -138,20 +334,15 @@
                                      (str (parent-of file-url))
                                      normalize)}))))))
 
-(defn -ls [c uid->name gid->name url recurse? attrs?]
-  (try (->> (concat (.ls c (str (path url) "/*"))
-                    (.ls c (str (path url) "/.*")))
-            (sort-by #(.getFilename %))
-            (mapcat #(let [f        (.getFilename %)
-                           file-url (with-parent url (escape-url f))]
-                       (if-not (#{"." ".."} f)              ; skip "." and ".." dirs
-                           (cons (f->kv c uid->name gid->name file-url attrs? %)
-                                 (if (and recurse?
-                                          (.isDir (.getAttrs %))) ; if isDir=true then isLink=false
-                                   (lazy-seq (-ls c uid->name gid->name file-url recurse? attrs?))
-                                 nil))
-                         nil))))
-    (catch Exception e [{:url url :error e}])))
+(defn list-dir [uid->name gid->name attrs? url]             ; => [[kv sub-dir-url-or-nil] ...]
+  (try (with-channel url (fn [c]
+                           (->> (.ls c (str (path url) default-delimiter)) ; one round trip, includes dot files
+                                (remove #(#{"." ".."} (.getFilename %)))
+                                (mapv #(let [file-url (with-parent url (escape-url (.getFilename %)))]
+                                         [(f->kv c uid->name gid->name file-url attrs? %)
+                                          (if (.isDir (.getAttrs %))       ; if isDir=true then isLink=false
+                                            file-url)])))))
+       (catch Exception e [[{:url url :error e} nil]])))
 
 (defn passwd->id->name [s]
   (->> (str/split-lines s)
@@ -170,25 +361,19 @@
       (slurp (.getInputStream c))
       (finally (.disconnect c)))))
 
-(defmethod ls :sftp [url & args] (let [opts     (get-opts default-opts-ls url args)
-                                       [s c]    (->session+channel url)
-                                       close-cs #(do (.disconnect c)
-                                                     (.disconnect s))
+(defmethod ls :sftp [url & args] (let [opts (get-opts default-opts-ls url args)
 
                                        [uid->name gid->name]
-                                       (map #(if (:attrs opts)
-                                               (try (passwd->id->name (exec->s s %))
-                                                    (catch Exception _ {}))
-                                               {})
-                                            ["getent passwd"
-                                             "getent group"])]
-                                   (try
-                                     (close-when-realized-or-finalized
-                                       close-cs
-                                       (-ls c
-                                            uid->name
-                                            gid->name
-                                            (ensure-not-ends-with-delimiter (normalize url))
-                                            (:recurse opts)
-                                            (:attrs opts)))
-                                     (catch Exception _ (close-cs)))))
+                                       (if (:attrs opts)
+                                         (with-channel url (fn [c]
+                                                             (let [s (.getSession ^Channel c)]
+                                                               (mapv #(try (passwd->id->name (exec->s s %))
+                                                                           (catch Exception _ {}))
+                                                                     ["getent passwd"
+                                                                      "getent group"]))))
+                                         [{} {}])]
+
+                                   (list-tree (partial list-dir uid->name gid->name (:attrs opts))
+                                              (ensure-not-ends-with-delimiter (normalize url))
+                                              (:recurse opts)
+                                              (:parallelism opts))))
@@ -1,17 +1,24 @@
 (ns uio.impl
   (:require [clojure.java.io :as jio]
             [clojure.string :as str])
-  (:import [clojure.lang IFn IPersistentMap Keyword]
-           [java.io ByteArrayInputStream ByteArrayOutputStream Closeable FilterInputStream FilterOutputStream InputStream OutputStream]
+  (:import [clojure.lang IFn IPersistentMap Keyword MultiFn]
+           [java.io ByteArrayInputStream ByteArrayOutputStream Closeable FileInputStream FileOutputStream FilterInputStream FilterOutputStream IOException InputStream OutputStream]
+           [java.lang.ref WeakReference]
            [java.net URI URLDecoder URLEncoder]
-           [java.security Security]
-           [uio.fs Streams$CountableInputStream Streams$CountableOutputStream Streams$DigestibleInputStream Streams$DigestibleOutputStream Streams$NullOutputStream Streams$Finalizer]))
+           [java.security MessageDigest Security]
+           [java.util ArrayDeque Date]
+           [java.util.concurrent ConcurrentHashMap ExecutionException Executors Future Semaphore ThreadFactory TimeUnit]
+           [uio.fs Metrics Metrics$Host Metrics$MeteredMultiFn Metrics$Op
+                   Streams$CountableInputStream Streams$CountableOutputStream Streams$DigestibleInputStream Streams$DigestibleOutputStream Streams$NullOutputStream Streams$Finalizer Streams$TakeNInputStream
+                   Streams$MultiDigestInputStream Streams$MultiDigestOutputStream Streams$ResumableInputStream Streams$S3EtagDigest]
+           [javax.xml.bind DatatypeConverter]))
 
 (def default-delimiter "/")
 (def default-opts-from {:offset 0
                         :length nil})
-(def default-opts-ls   {:recurse false
-                        :attrs   false})
+(def default-opts-ls   {:recurse     false
+                        :attrs       false
+                        :parallelism 1})                   ; max number of dirs listed concurrently by `:recurse true`
 
 ; Helper fns
 
@@ -63,7 +70,7 @@
 
         :else url))
 
-(defn ->URI          ^URI    [^String url] (rethrowing
+(defn parse-uri     ^URI     [^String url] (rethrowing
                                              (str "Couldn't parse URL " (pr-str url))
                                              (let [fixed-url      (fix-url url)
                                                    normalized-uri (.normalize (URI. fixed-url))
@@ -73,22 +80,42 @@
                                                  (URI. (str/replace-first normalized-uri-str ":/" ":///"))
                                                  normalized-uri))))
 
+; A URL is usually parsed many times in a row (e.g. `from` on S3 needs its scheme to dispatch, then host, path and
+; credentials), so parsed URLs are cached. The cache is cleared when it grows over `parsed-urls-max` entries.
+(deftype ParsedUrl [^URI uri scheme-k path])
+
+(def parsed-urls-max 10000)
+(def ^ConcurrentHashMap parsed-urls (ConcurrentHashMap.))
+
+(defn parse-url ^ParsedUrl [^String url]
+  (or (if url (.get parsed-urls url))
+      (let [uri (parse-uri url)
+            p   (.getPath uri)
+            pu  (ParsedUrl. uri
+                            (keyword (.getScheme uri))
+                            (if (and (not (str/blank? p))
+                                     (not (re-matches pattern-url-no-auth-and-path url)))
+                              p))]
+        (if (<= parsed-urls-max (.size parsed-urls))
+          (.clear parsed-urls))
+        (.put parsed-urls url pu)
+        pu)))
+
+(defn ->URI          ^URI    [^String url] (.uri (parse-url url)))
+
 (defn url?          ^Boolean [^String url] (try (->URI url)
                                                 true
                                                 (catch Exception _ false)))
 
 (defn normalize     ^String  [^String url] (-> url ->URI str))
 (defn scheme        ^String  [^String url] (-> url ->URI .getScheme))
-(defn scheme-k      ^Keyword [^String url] (-> url ->URI .getScheme keyword))
+(defn scheme-k      ^Keyword [^String url] (.scheme-k (parse-url url)))
 
 (defn user          ^String  [^String url] (-> url ->URI .getUserInfo))
 (defn host          ^String  [^String url] (-> url ->URI .getHost))
 (defn port          ^Integer [^String url] (let [p (-> url ->URI .getPort)]
                                              (if (not= -1 p) p)))
-(defn path          ^String  [^String url] (let [p (.getPath (->URI url))]
-                                             (if (and (not (str/blank? p))
-                                                      (not (re-matches pattern-url-no-auth-and-path url)))
-                                               p)))
+(defn path          ^String  [^String url] (.path (parse-url url)))
 (defn filename      ^String  [^String url] (let [s (-> url path)]
                                              (subs s (inc (str/last-index-of s default-delimiter)))))
 
@@ -111,17 +138,31 @@
                                             (subs url 0 (dec (str/index-of url q)))
                                             url))
 ; Public API
-(defmulti from    (fn [^String url & args] (scheme-k url)))    ; -> InputStream  -- must be closed by user, use (with-open [...])
-(defmulti to      (fn [^String url & args] (scheme-k url)))    ; -> OutputStream -- must be closed by user, use (with-open [...])
-(defmulti size    (fn [^String url & args] (scheme-k url)))    ; -> Number
-(defmulti exists? (fn [^String url & args] (scheme-k url)))    ; -> boolean
-(defmulti delete  (fn [^String url & args] (scheme-k url)))    ; -> nil
-(defmulti ls      (fn [^String url & args] (scheme-k url)))    ; -> []
-(defmulti mkdir   (fn [^String url & args] (scheme-k url)))    ; -> nil
-(defmulti attrs   (fn [^String url & args] (scheme-k url)))    ; -> nil
-(defmulti copy    (fn [^String from-url ^String to-url & args] ; -> nil
-                    (->URI from-url)                           ; ensure `from-url` is also parsable
-                    (scheme-k to-url)))                        ; dispatch on `scheme` (and ensure it's also parsable)
+; Same as `defmulti`, but also records metrics of calls while they're enabled (see `enable-metrics`).
+; `url-arg` is the index of the argument whose scheme and host the calls are grouped by.
+(defmacro defmulti-metered [name url-arg dispatch-fn]
+  `(defonce ~name (Metrics$MeteredMultiFn. ~(str name) ~dispatch-fn :default #'clojure.core/global-hierarchy ~url-arg)))
+
+(defmulti-metered from    0 (fn [^String url & args] (scheme-k url)))  ; -> InputStream  -- must be closed by user, use (with-open [...])
+(defmulti-metered to      0 (fn [^String url & args] (scheme-k url)))  ; -> OutputStream -- must be closed by user, use (with-open [...])
+(defmulti-metered size    0 (fn [^String url & args] (scheme-k url)))  ; -> Number
+(defmulti-metered exists? 0 (fn [^String url & args] (scheme-k url)))  ; -> boolean
+(defmulti-metered delete  0 (fn [^String url & args] (scheme-k url)))  ; -> nil
+(defmulti-metered ls      0 (fn [^String url & args] (scheme-k url)))  ; -> []
+(defmulti-metered mkdir   0 (fn [^String url & args] (scheme-k url)))  ; -> nil
+(defmulti-metered attrs   0 (fn [^String url & args] (scheme-k url)))  ; -> nil
+(defmulti-metered stat    0 (fn [^String url & args] (scheme-k url)))  ; -> {:size n :version "..."} -- version (e.g. ETag,
+                                                                       ;    mtime) changes with content, nil if unknown
+(defmulti-metered delete-tree 0 (fn [^String url & args] (scheme-k url)))  ; -> nil
+
+; Batches: many URLs of one scheme per call (see `delete-many`, `exists-many`, `size-many` for API)
+(defmulti delete-batch (fn [urls opts] (scheme-k (first urls))))  ; -> nil
+(defmulti exists-batch (fn [urls opts] (scheme-k (first urls))))  ; -> {url boolean}
+(defmulti size-batch   (fn [urls opts] (scheme-k (first urls))))  ; -> {url size}
+
+(defmulti-metered copy    1 (fn [^String from-url ^String to-url & args] ; -> nil
+                              (->URI from-url)                         ; ensure `from-url` is also parsable
+                              (scheme-k to-url)))                      ; dispatch on `scheme` (and ensure it's also parsable)
 
 ; Codecs
 (defmulti ext->is->is (fn [^String ext] ext)) ; ext -> (fn [^InputStream  is] ...wrap into another InputStream)
@@ -131,11 +172,39 @@
 
 (def ^:dynamic *config* {})
 
+; => (fn [s] ...the longest of `prefixes` that `s` starts with, or nil)
+; Looks up prefixes of `s` by length in a set, one lookup per distinct length of `prefixes`.
+(defn ->prefix-index [prefixes]
+  (let [ps      (set prefixes)
+        lengths (->> ps (map count) distinct (sort >))]
+    (fn [^String s]
+      (some (fn [^long n]
+              (if (<= n (.length s))
+                (let [p (subs s 0 n)]
+                  (if (contains? ps p) p))))
+            lengths))))
+
 (defn longest-matching-prefix [cred-prefix-urls s]
-  (->> cred-prefix-urls
-       (filter #(str/starts-with? s %))
-       (sort-by count)
-       last))
+  ((->prefix-index cred-prefix-urls) s))
+
+; prefix indexes of the last seen configs, by identity: `*config*` rarely changes, but a few configs can be in use
+; at once (e.g. in different threads). Configs are weakly referenced, so the ones no longer used can be collected.
+(def max-creds-indexes 16)
+(def config-refs+creds-indexes (atom []))                   ; [[WeakReference index] ...], most recent first
+
+(defn config->creds-index [config]
+  (or (some (fn [[^WeakReference r index]] (if (identical? config (.get r)) index))
+            @config-refs+creds-indexes)
+      (let [index (->prefix-index (filter #(and (string? %)
+                                                (scheme %))
+                                          (keys config)))]
+        (swap! config-refs+creds-indexes
+               (fn [xs] (->> xs
+                             (filter (fn [[^WeakReference r]] (.get r)))
+                             (take (dec max-creds-indexes))
+                             (cons [(WeakReference. config) index])
+                             (vec))))
+        index)))
 
 ; TODO parse env and build config
 ; UIO_URL_A=s3://bucket-a?access=...-a&secret=...
@@ -152,10 +221,7 @@
 
 ; for testing, see `url->creds` for API
 (defn url->creds' [config env url]
-  (let [longest-url (longest-matching-prefix (filter #(and (string? %)
-                                                           (scheme %))
-                                                     (keys config))
-                                             url)
+  (let [longest-url ((config->creds-index config) url)
         cr          (or (get config longest-url) {})        ; credentials (value) extracted by URL (key)
         c           (or config {})                          ; config -- for compatibility, credentials stored as keys
         e           (or env {})                             ; env    -- for compatibility, comes from JVM process (immutable, extracted as arg for testing)
@@ -193,33 +259,222 @@
               :identity-pass           (or (cr :identity-pass) (c :sftp.identity.pass)
                                                                (c :sftp.identity.passphrase) (e "SFTP_IDENTITY_PASS")    (e "SSH_PASSPHRASE"))})))
 
+(def env (delay (into {} (System/getenv))))                  ; immutable for the lifetime of JVM
+
 (defn url->creds [url]
-  (url->creds' *config* (into {} (System/getenv)) url))
+  (url->creds' *config* @env url))
+
+(defn ->daemon-thread-factory ^ThreadFactory [^String name]
+  (reify ThreadFactory
+    (newThread [_ r] (doto (Thread. ^Runnable r name)
+                           (.setDaemon true)))))
+
+; Shared clients
+;
+; Some clients are expensive to build (TLS handshakes, STS role assumption, Kerberos logins),
+; but are safe to share across threads (e.g. `AmazonS3Client` or Hadoop's `FileSystem`).
+; Implementations lease such clients by a key (usually scheme + `url->creds` result) instead of
+; building a new one per call. Idle clients are closed after `client-idle-ms` or when there are
+; more than `client-max-count` of them. All clients are closed on JVM shutdown or by `close-clients`.
+;
+; Example:
+; (with-client [:s3 (url->creds url)]
+;              #(AmazonS3Client. (->creds-provider url))
+;              #(.shutdown %)
+;              #(.doesObjectExist % "bucket" "key"))
+;
+(def client-idle-ms   (* 5 60 1000))
+(def client-max-count 32)
+
+(def ^:private client-lock (Object.))
+(def ^:private *k->client (atom {}))                       ; k -> {:client (delay ...) :built (atom client-or-nil) :closed (atom bool)
+                                                           ;       :close fn :leases n :used ms}
+(def ^:private *orphans   (atom []))                       ; leased entries dropped by `close-clients` before being built
+
+; `realized?` of a delay would wait while another thread builds the client
+(defn- built-client [e]
+  @(:built e))
+
+(defn- close-client-entry [{:keys [close closed] :as e}]
+  (when-let [c (built-client e)]
+    (when (compare-and-set! closed false true)
+      (try (close c)
+           (catch Throwable _ nil)))))                      ; nothing sensible to do if a client fails to close
+
+; must be called while holding `client-lock`
+(defn- evict-clients [now]
+  (let [idle    (->> @*k->client
+                     (filter (fn [[_ e]] (zero? (:leases e))))
+                     (sort-by (fn [[_ e]] (:used e))))
+        expired (filter (fn [[_ e]] (< client-idle-ms (- now (:used e)))) idle)
+        excess  (take (- (count @*k->client) client-max-count) idle)
+        evicted (distinct (concat expired excess))]
+    (swap! *k->client #(apply dissoc % (map first evicted)))
+    (map second evicted)))
+
+(def ^:private *pools (atom {}))                          ; k -> {:sweep fn :close fn}
+
+(defn- sweep-clients []
+  (run! close-client-entry (locking client-lock
+                             (doall (evict-clients (System/currentTimeMillis)))))
+  (doseq [{:keys [sweep]} (vals @*pools)]
+    (try (sweep)
+         (catch Throwable _ nil))))
+
+(defn close-clients
+  "Close all shared clients (including leased ones) and registered pools"
+  []
+  (run! close-client-entry (locking client-lock
+                             (let [es (vals @*k->client)]
+                               (reset! *k->client {})
+                               (swap! *orphans into (filter #(and (pos? (:leases %))     ; closed by their last release
+                                                                  (nil? (built-client %)))
+                                                            es))
+                               es)))
+  (doseq [{:keys [close]} (vals @*pools)]
+    (try (close)
+         (catch Throwable _ nil))))
+
+(def ^:private client-sweeper
+  (delay (.addShutdownHook (Runtime/getRuntime) (Thread. ^Runnable close-clients "uio-close-clients"))
+         (doto (Executors/newSingleThreadScheduledExecutor (->daemon-thread-factory "uio-client-sweeper"))
+               (.scheduleWithFixedDelay sweep-clients
+                                        (quot client-idle-ms 2)
+                                        (quot client-idle-ms 2)
+                                        TimeUnit/MILLISECONDS))))
+
+(defn register-pool
+  "Let an implementation-specific pool (e.g. SFTP sessions) be swept and closed together with shared clients"
+  [k sweep close]
+  @client-sweeper
+  (swap! *pools assoc k {:sweep sweep :close close}))
+
+(defn release-client
+  "Return `client` leased for key `k`. Only counts against the entry the client came from: if that entry was dropped
+   meanwhile (e.g. by `close-clients`), a newer entry of `k` is not affected."
+  [k client]
+  (let [orphan (locking client-lock
+                 (let [e (@*k->client k)]
+                   (if (and e (identical? client (built-client e)))
+                     (do (swap! *k->client assoc k (-> e
+                                                       (update :leases dec)
+                                                       (assoc :used (System/currentTimeMillis))))
+                         nil)
+                     (when-let [o (first (filter #(identical? client (built-client %)) @*orphans))]
+                       (swap! *orphans (fn [os] (vec (remove #(identical? o %) os))))
+                       (if (< 1 (:leases o))
+                         (do (swap! *orphans conj (update o :leases dec))
+                             nil)
+                         o)))))]
+    (some-> orphan close-client-entry)))
+
+(defn lease-client
+  "Return a shared client for key `k`, building it with `->client` if needed.
+   Every call should be followed by `(release-client k client)` when the client is no longer used."
+  [k ->client close-client]
+  @client-sweeper
+  (let [[e evicted] (locking client-lock
+                      (let [now (System/currentTimeMillis)
+                            e   (-> (or (@*k->client k)
+                                        {:client (delay (->client))
+                                         :built  (atom nil)
+                                         :closed (atom false)
+                                         :close  close-client
+                                         :leases 0})
+                                    (update :leases inc)
+                                    (assoc :used now))]
+                        (swap! *k->client assoc k e)
+                        [e (doall (evict-clients now))]))]
+    (run! close-client-entry evicted)
+    (try (let [c @(:client e)]
+           (reset! (:built e) c)
+           c)
+         (catch Throwable t
+           (locking client-lock                             ; don't cache a client that failed to build
+             (if (identical? (:client e) (:client (@*k->client k)))
+               (swap! *k->client dissoc k)))
+           (throw t)))))
+
+(defn with-client [k ->client close-client client->x]
+  (let [c (lease-client k ->client close-client)]
+    (try (client->x c)
+         (finally (release-client k c)))))
+
+; Example:
+; (open-with-resource #(lease-client ...)
+;                     #(.open % path)
+;                     (fn [_] (release-client ...)))
+; => [resource stream] ...or closes the resource and rethrows, if the stream couldn't be opened
+;
+(defn open-with-resource [->resource resource->s close-resource]
+  (let [r (->resource)]
+    [r (try (resource->s r)
+            (catch Throwable t
+              (try (close-resource r)
+                   (catch Throwable _ nil))                 ; keep the original exception
+              (throw t)))]))
+
+; Example:
+; (close-on-error (.open fs path)
+;                 #(doto % (.seek 1024)))
+; => result of (f c) ...or closes `c` and rethrows, if (f c) throws
+;
+(defn close-on-error [^Closeable c f]
+  (try (f c)
+       (catch Throwable t
+         (try (.close c)
+              (catch Throwable _ nil))                      ; keep the original exception
+         (throw t))))
+
+; Helpers for `from` to implement :offset and :length
+
+(defn take-length ^InputStream [^InputStream is length]    ; length: bytes or nil (till the end)
+  (if length
+    (Streams$TakeNInputStream. length is)
+    is))
+
+(defn skip-fully ^InputStream [^InputStream is ^long n]    ; for streams that can't seek. Stops at EOF
+  (loop [n n]
+    (when (pos? n)
+      (let [skipped (.skip is n)]
+        (cond (pos? skipped)       (recur (- n skipped))
+              (neg? (.read is))    nil
+              :else                (recur (dec n))))))
+  is)
+
+; nil or (atom [AutoCloseable]) of listings (see `collect-closers`) and streams of `wrap-is`/`wrap-os` opened while bound
+(def ^:dynamic *closers* nil)
+
+(defn- closed-by-closers [^Closeable s]
+  (if *closers*
+    (swap! *closers* conj s))
+  s)
 
 (defn wrap-is [->resource resource->is close-resource]
-  (let [r       (->resource)
+  (let [[r is]  (open-with-resource ->resource resource->is close-resource)
         *closed (atom false)]
-    (proxy [FilterInputStream] [(resource->is r)]
-      (close [] (when-not @*closed                          ; TODO remove race condition chance
-                  (try (proxy-super close)
-                       (finally (close-resource r)))
-                  (reset! *closed true))))))                ; TODO remove race condition chance
+    (closed-by-closers
+      (proxy [FilterInputStream] [is]
+        (close [] (when-not @*closed                        ; TODO remove race condition chance
+                    (try (proxy-super close)
+                         (finally (close-resource r)))
+                    (reset! *closed true)))))))             ; TODO remove race condition chance
 
 (defn wrap-os [->resource resource->os close-resource]
-  (let [r       (->resource)
-        os      (resource->os r)
+  (let [[r os]  (open-with-resource ->resource resource->os close-resource)
         *closed (atom false)]
-    (proxy [FilterOutputStream] [os]
-      ; delegate batch methods as is -- don't peel into individual (.write ... ^int) calls
-      ; NOTE: this lowers chances of SFTP implementation to hang (concurrency bug in JSch)
-      ;       and improves performance
-      (write ([^bytes bs]               (.write os bs))
-             ([^bytes bs offset length] (.write os bs offset length)))
-
-      (close [] (when-not @*closed                          ; TODO remove race condition chance
-                  (try (proxy-super close)
-                       (finally (close-resource r)))
-                  (reset! *closed true))))))                ; TODO remove race condition chance
+    (closed-by-closers
+      (proxy [FilterOutputStream] [os]
+        ; delegate batch methods as is -- don't peel into individual (.write ... ^int) calls
+        ; NOTE: this lowers chances of SFTP implementation to hang (concurrency bug in JSch)
+        ;       and improves performance
+        (write ([^bytes bs]               (.write os bs))
+               ([^bytes bs offset length] (.write os bs offset length)))
+
+        (close [] (when-not @*closed                        ; TODO remove race condition chance
+                    (try (proxy-super close)
+                         (finally (close-resource r)))
+                    (reset! *closed true)))))))             ; TODO remove race condition chance
 
 ; Example:
 ; (try-with #(FileInputStream. "file://1.txt")
@@ -363,6 +618,19 @@
           s
           ext+s->s))
 
+; Settings of codecs and streams come from `*config*` at the moment a stream is created, e.g. (with {:gz.threads 1} ...)
+(defn config-int [k default min max]
+  (let [v (get *config* k default)]
+    (if-not (and (integer? v) (<= min v max))
+      (die (str "Expected " k " to be an integer in range [" min ", " max "], but got: " (pr-str v))))
+    (int v)))
+
+(defn codec-threads [k]
+  (config-int k (.availableProcessors (Runtime/getRuntime)) 1 Integer/MAX_VALUE))
+
+(defn codec-buffer-size [k]
+  (config-int k (* 64 1024) 1 Integer/MAX_VALUE))
+
 ; streams<->bytes functions
 (defn ^bytes is->bytes [^InputStream is]
   (let [baos (ByteArrayOutputStream.)]
@@ -372,6 +640,33 @@
 (defn ^InputStream bytes->is [^bytes bs]
   (ByteArrayInputStream. bs))
 
+; Copy all bytes from `is` to `os`. When `is` is a `FileInputStream` over a regular file and `os` is a `FileOutputStream`,
+; bytes are moved with `FileChannel.transferTo` (`sendfile` on Linux) and never enter the JVM heap.
+; Anything left (e.g. `is` is a pipe, or the file grew) is copied through a buffer. Doesn't close the streams.
+;
+; Example:
+; (with-open [is (from "file:///big.csv")
+;             os (to   "file:///copy-of-big.csv")]
+;   (transfer is os))
+(defn transfer [^InputStream is ^OutputStream os]
+  (let [fis (Metrics/unwrap is)                             ; streams of `from`/`to` are wrapped when metrics are on
+        fos (Metrics/unwrap os)]
+    (when (and (instance? FileInputStream fis)
+               (instance? FileOutputStream fos))
+      (let [ic    (.getChannel ^FileInputStream fis)
+            oc    (.getChannel ^FileOutputStream fos)
+            start (.position ic)]
+        (when (pos? (.size ic))                             ; pipes and devices report size 0 and can't seek
+          (loop [position start]
+            (let [n (if (< position (.size ic))
+                      (.transferTo ic position (- (.size ic) position) oc)
+                      0)]
+              (if (pos? n)
+                (recur (+ position n))
+                (do (.position ic position)
+                    (Metrics/addTransferred is os (- position start))))))))))
+  (jio/copy is os :buffer-size 65536))
+
 (defn ^bytes with-baos->bytes [^IFn baos->nil]
   (let [baos (ByteArrayOutputStream.)]
     (baos->nil baos)
@@ -421,6 +716,8 @@
 ; 11
 ; => nil
 ;
+; `count` throws past 2GB, use `(.getCount is-or-os)` to get a long.
+;
 ; Example (advanced): measure compressed VS uncompressed ratio
 ; (with-open [os-file (->countable (jio/output-stream (->nil-os)))
 ;             os-gz   (->countable (ext-encode-os :gz os-file))
@@ -486,6 +783,133 @@
                                        :when (= "MessageDigest" (.getType s))]
                                    (.getAlgorithm s)))
 
+; Several digests in one pass
+;
+; Algorithms: any of `available-digest-algorithms`, or "S3-ETAG" -- the ETag of an object uploaded to S3 in parts of
+; `part-size` bytes, like `to` on S3 does (see `Streams$S3EtagDigest`)
+;
+; Example:
+; (with-open [is (->multi-digestible ["MD5" "SHA-256" "S3-ETAG"] (bytes->is (.getBytes "hello world")))]
+;   (transfer is (->nil-os))
+;   (close-and-digests is))
+; => {"MD5"     "5eb63bbbe01eeed093cb22bb8f5acdc3"
+;     "SHA-256" "b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9"
+;     "S3-ETAG" "241d8a27c836427bd7f04461b60e7359-1"}
+;
+(def default-etag-part-size (* 5 1024 1024))               ; as `S3$S3OutputStream/MIN_PART_SIZE`, used by `to` on S3
+
+(defn ->message-digest ^MessageDigest [^String algorithm part-size]
+  (if (= "S3-ETAG" (str/upper-case algorithm))
+    (Streams$S3EtagDigest. (or part-size default-etag-part-size))
+    (MessageDigest/getInstance algorithm)))
+
+(defn ->multi-digestible [algorithms ^Closeable is-or-os & [part-size]]
+  (let [mds (into-array MessageDigest (map #(->message-digest % part-size) algorithms))]
+    (cond (instance? InputStream  is-or-os) (Streams$MultiDigestInputStream.  is-or-os mds)
+          (instance? OutputStream is-or-os) (Streams$MultiDigestOutputStream. is-or-os mds)
+          :else                             (die (str "Expected InputStream or OutputStream, but got "
+                                                      (if (nil? is-or-os)
+                                                        "nil"
+                                                        (.getName (type is-or-os))))))))
+
+(defn close-and-digests [^Closeable is-or-os]               ; => {algorithm hex-digest}
+  (let [digests (.closeAndDigests is-or-os)]
+    (into {}
+          (map (fn [^MessageDigest md ^bytes bs]
+                 [(.getAlgorithm md) (if (instance? Streams$S3EtagDigest md)
+                                       (Streams$S3EtagDigest/etag bs (.getDigestedParts ^Streams$S3EtagDigest md))
+                                       (str/lower-case (DatatypeConverter/printHexBinary bs)))])
+               (.getMessageDigests is-or-os)
+               digests))))
+
+; Checksums
+;
+; :algorithms -- see `->multi-digestible`
+; :part-size  -- bytes per part for "S3-ETAG"
+;
+(def default-opts-checksum {:algorithms ["MD5"]
+                            :part-size  default-etag-part-size})
+
+; => the digest of `algorithm` an S3 ETag already is, or nil
+; NOTE: a plain ETag is an MD5 unless the object is encrypted with SSE-C or SSE-KMS, and a multipart one is an
+;       "S3-ETAG" if the part count is the one of `part-size` (it doesn't tell the part size itself)
+(defn etag->digest [^String etag size ^String algorithm part-size]
+  (if-let [[_ md5 parts] (some->> etag (re-matches #"\"?([0-9a-f]{32})(?:-(\d+))?\"?"))]
+    (case (str/upper-case algorithm)
+      "MD5"     (if-not parts md5)
+      "S3-ETAG" (if (and parts
+                         (= (Long/parseLong parts) (max 1 (quot (+ size part-size -1) part-size))))
+                  (str md5 "-" parts))
+      nil)))
+
+(defn- checksum-entry [url size etag opts]
+  (let [algorithms (:algorithms opts)
+        stored     (->> algorithms
+                        (keep #(if-let [d (etag->digest etag size % (:part-size opts))] [% d]))
+                        (into {}))
+        missing    (remove stored algorithms)
+        computed   (if (seq missing)                        ; read once for all digests
+                     (with-open [is (->multi-digestible missing (from url) (:part-size opts))]
+                       (transfer is (->nil-os))
+                       (->> (close-and-digests is)
+                            (map (fn [[a d]] [(str/upper-case a) d]))
+                            (into {}))))]
+    (into {:url url :size size}
+          (for [a algorithms]
+            [(keyword (str/lower-case a)) (or (stored a) (get computed (str/upper-case a)))]))))
+
+; Example:
+; (checksum "s3://bucket/file.txt" {:algorithms ["MD5" "SHA-256"]})
+; => {:url "s3://bucket/file.txt" :size 11 :md5 "5eb63bbbe01eeed093cb22bb8f5acdc3" :sha-256 "b94d27..."}
+;
+; NOTE: uses the ETag of S3 objects when it already is the digest (see `etag->digest`), so nothing is read
+(defn checksum [url & args]
+  (let [opts (get-opts default-opts-checksum url args)
+        st   (stat url)]
+    (checksum-entry url (:size st) (:etag st) opts)))
+
+; :parallelism -- max number of files being read concurrently
+; :progress    -- (fn [entry] ...) or nil. Called from worker threads after each file, with an entry as returned below
+;
+(def default-opts-checksum-tree (merge default-opts-checksum
+                                       {:parallelism 8
+                                        :progress    nil}))
+
+; Example:
+; (checksum-tree "hdfs:///path/to/dir/" {:algorithms ["MD5"] :parallelism 16})
+; => [{:url "hdfs:///path/to/dir/a.txt" :size 11 :md5 "5eb63bbbe01eeed093cb22bb8f5acdc3"}
+;     {:url "hdfs:///path/to/dir/b.txt" :error #error{...}}
+;     ...sorted by :url]
+;
+; NOTE: failed files don't stop the others, they're returned with :error
+(defn checksum-tree [url & args]
+  (let [opts    (get-opts default-opts-checksum-tree url args)
+        base    (ensure-ends-with-delimiter (normalize url))
+        n       (:parallelism opts)
+        permits (Semaphore. (* 2 n))                        ; don't queue more than that while listing
+        pool    (Executors/newFixedThreadPool n (->daemon-thread-factory "uio-checksum-tree"))
+        *found  (atom [])
+        found!  (fn [entry]
+                  (swap! *found conj entry)
+                  (when-let [progress (:progress opts)]
+                    (progress entry)))]
+    (try
+      (doseq [e (ls base {:recurse true :attrs true})]
+        (cond (:error e) (found! {:url (:url e) :error (:error e)})
+              (:dir e)   nil
+              :else      (do (.acquire permits)
+                             (.submit pool ^Runnable
+                                      (bound-fn []
+                                        (try (found! (checksum-entry (:url e) (:size e) (:etag e) opts))
+                                             (catch Exception ex (found! {:url (:url e) :error ex}))
+                                             (finally (.release permits))))))))
+      (.shutdown pool)
+      (.awaitTermination pool Long/MAX_VALUE TimeUnit/MILLISECONDS)
+      (vec (sort-by :url @*found))
+
+      (finally
+        (.shutdownNow pool)))))
+
 ; Rest of Public API
 (defn with-fn [config f]
   (if-not (instance? IPersistentMap config)
@@ -498,10 +922,57 @@
 ;(defmacro with [config & body]
 ;  `(with-fn ~config (fn [] ~@body)))
 
+; Resumable reads
+;
+; Same as `from`, but when reading fails midway (e.g. the connection is reset) or ends early, the source is reopened at
+; the current offset with `:offset`/`:length` (so `url` must support them) and reading goes on. Before reopening, `stat`
+; is compared to the one taken before the first read, and a changed size or version (ETag, mtime) fails the stream.
+; Other opts are passed to `from` as is.
+;
+; Config:
+;   :resume.retries        -- max reopens per stream (default: 5). When set, `from*` and `copy` of streams resume too
+;   :resume.backoff-ms     -- wait before reopening, doubled on each consecutive failure (default: 500)
+;   :resume.max-backoff-ms -- (default: 30000)
+;
+; Example:
+; (with {:resume.retries 10}
+;   (copy "s3://bucket/huge.bin" "file:///data/huge.bin"))
+;
+(defn- io-error? [^Throwable t]                             ; in the chain of causes
+  (->> (iterate #(.getCause ^Throwable %) t)
+       (take-while some?)
+       (some #(instance? IOException %))
+       (boolean)))
+
+(defn ^InputStream resumable-from [^String url & args]
+  (let [opts    (first args)
+        st      (stat url)
+        size    (long (:size st))
+        offset  (min size (or (:offset opts) 0))
+        length  (min (- size offset) (or (:length opts) Long/MAX_VALUE))
+        *opened (atom false)]
+    (Streams$ResumableInputStream.
+      (bound-fn [o l]
+        (if-not (compare-and-set! *opened false true)      ; reopening
+          (let [st' (stat url)]
+            (if (not= (select-keys st [:size :version]) (select-keys st' [:size :version]))
+              (die (str "Can't resume reading " url ": it changed from " (pr-str st) " to " (pr-str st'))))))
+        (from url (assoc opts :offset o :length l)))
+      io-error?
+      offset
+      length
+      (config-int :resume.retries 5 0 Integer/MAX_VALUE)
+      (config-int :resume.backoff-ms 500 0 Integer/MAX_VALUE)
+      (config-int :resume.max-backoff-ms 30000 0 Integer/MAX_VALUE))))
+
+; => true if reads should go through `resumable-from`, i.e. :resume.retries is set in config
+(defn resume? []
+  (pos? (get *config* :resume.retries 0)))
+
 ; TODO add examples
 (defn ^InputStream from* [^String url & args]
   (rethrowing (str "Couldn't apply is->is codecs to " url)
-              (apply-codecs (apply from (cons url args))
+              (apply-codecs (apply (if (resume?) resumable-from from) (cons url args))
                             (url->ext+s->s ext->is->is url))))
 
 ; TODO add examples
@@ -510,47 +981,430 @@
               (apply-codecs (apply to (cons url args))
                             (url->ext+s->s ext->os->os url))))
 
+; Implementations: loaded on first use
+;
+; A call with a scheme (or extension) that has no method yet falls to `:default`, which requires the namespace of that
+; scheme from the registry below and calls the method it defined. So `uio from file:///...` doesn't load AWS SDK, Hadoop,
+; JSch and codec libraries. Classes are checked (not loaded) before requiring: one per library a namespace imports from.
+
+(def implementations
+  (let [fs {:file  ['uio.fs.file]
+            :hdfs  ['uio.fs.hdfs  "org.apache.hadoop.fs.FileSystem"]
+            :http  ['uio.fs.https]
+            :https ['uio.fs.https]
+            :mem   ['uio.fs.mem]
+            :res   ['uio.fs.res]
+            :s3    ['uio.fs.s3    "com.amazonaws.services.s3.AmazonS3Client" "com.amazonaws.auth.STSAssumeRoleSessionCredentialsProvider"]
+            :sftp  ['uio.fs.sftp  "com.jcraft.jsch.JSch"]}]
+    {:fs     (into fs (for [[k [_ & classes]] fs]               ; see `uio.fs.cache`
+                        [(keyword (str "cache+" (name k))) (into ['uio.fs.cache] classes)]))
+     :codecs {:bz2    ['uio.codecs.bz2    "org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream"]
+              :gz     ['uio.codecs.gz     "org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream"]
+              :lz4    ['uio.codecs.lz4    "net.jpountz.lz4.LZ4FrameInputStream"]
+              :snappy ['uio.codecs.snappy "org.xerial.snappy.SnappyFramedInputStream"]
+              :xz     ['uio.codecs.xz     "org.apache.commons.compress.compressors.CompressorStreamFactory" "org.tukaani.xz.XZInputStream"]
+              :zst    ['uio.codecs.zst    "com.github.luben.zstd.ZstdInputStream"]}}))
+
+(defn- missing-classes [classes]
+  (filter #(try (Class/forName % false (.getClassLoader Streams$TakeNInputStream))
+                false
+                (catch ClassNotFoundException _ true))
+          classes))
+
+(def ^:private loaded-namespaces (atom #{}))
+
+(defn- require-if-available [ns classes]
+  (when-not (@loaded-namespaces ns)
+    (when (empty? (missing-classes classes))
+      (locking loaded-namespaces                            ; `require` of Clojure 1.8 isn't thread-safe
+        (when-not (@loaded-namespaces ns)
+          (require ns)
+          (swap! loaded-namespaces conj ns))))))
+
+; => method of `mf` for `k` (a scheme or extension of `kind` :fs or :codecs) after loading its namespace, or nil if none
+(defn lazy-method [kind ^MultiFn mf k]
+  (if-let [[ns & classes] (get-in implementations [kind k])]
+    (require-if-available ns classes))
+  (let [m (.getMethod mf k)]
+    (if-not (identical? m (.getMethod mf :default))
+      m)))
+
+; Only before the namespace of `k` is loaded: otherwise `(get-method mf :default)`, called by an implementation to fall
+; back (e.g. to copy via streams), would call that implementation again
+(defn- apply-lazy-method [kind mf k args otherwise]
+  (if-let [m (if-let [[ns] (get-in implementations [kind k])]
+               (if-not (@loaded-namespaces ns)
+                 (lazy-method kind mf k)))]
+    (apply m args)
+    (otherwise)))
+
+; Example:
+; (ns myns
+;   (:require [uio.uio :as uio]
+;             [uio.impl :as impl]))
+;
+; (uio.impl/list-available-implementations)
+; => {:fs     [:cache+file ... :cache+sftp :file :hdfs :http :https :mem :res :s3 :sftp]
+;     :codecs [:bz2 :gz :lz4 :snappy :xz :zst]}
+;
+(defn list-available-implementations []
+  (let [available (fn [kind ^MultiFn mf]
+                    (->> (implementations kind)
+                         (keep (fn [[k [_ & classes]]] (if (empty? (missing-classes classes)) k)))
+                         (concat (keys (.getMethodTable mf)))   ; and implementations from outside uio
+                         (remove #{:default})
+                         (distinct)
+                         (sort)
+                         (vec)))]
+    {:fs     (available :fs     from)
+     :codecs (available :codecs ext->is->is)}))
+
 ; Implementation: defaults
 (defn default-impl [^String url ^String method args]
-  (if (scheme url)
-    (die (str "Method " (pr-str method) " is not implemented for " url))
+  (if-let [k (scheme-k url)]
+    (if-let [missing (seq (some->> (get-in implementations [:fs k]) rest missing-classes))]
+      (die (str "Can't use " url ", because classes " (vec missing) " are not in classpath. "
+                "Add dependencies of " (name k) " (see `project.clj` of uio) or check their :exclusions"))
+      (die (str "Method " (pr-str method) " is not implemented for " url)))
     (die (str "Expected a URL with a scheme, but got: \"" url "\". "
               "Available schemes are: "
-              (->> method
-                   symbol resolve deref methods keys
-                   (remove #{:default})
+              (->> (:fs (list-available-implementations))
                    (map #(str (name %) "://"))
-                   sort
                    (str/join ", "))))))
 
-(defmethod from    :default [url & args] (default-impl url "from"    args))
-(defmethod to      :default [url & args] (default-impl url "to"      args))
-(defmethod size    :default [url & args] (default-impl url "size"    args))
-(defmethod exists? :default [url & args] (default-impl url "exists?" args))
-(defmethod delete  :default [url & args] (default-impl url "delete"  args))
-(defmethod ls      :default [url & args] (default-impl url "ls"      args))
-(defmethod mkdir   :default [url & args] (default-impl url "mkdir"   args))
-(defmethod attrs   :default [url & args] (default-impl url "attrs"   args))
-
-(defmethod copy    :default [from-url to-url & args] (with-open [is (from from-url)
-                                                                 os (to to-url)]
-                                                       (jio/copy is os :buffer-size 8192)))
-(defmethod ext->is->is :default [_] nil)
-(defmethod ext->os->os :default [_] nil)
+(defmethod from    :default [url & args] (apply-lazy-method :fs from    (scheme-k url) (cons url args) #(default-impl url "from"    args)))
+(defmethod to      :default [url & args] (apply-lazy-method :fs to      (scheme-k url) (cons url args) #(default-impl url "to"      args)))
+(defmethod size    :default [url & args] (apply-lazy-method :fs size    (scheme-k url) (cons url args) #(default-impl url "size"    args)))
+(defmethod exists? :default [url & args] (apply-lazy-method :fs exists? (scheme-k url) (cons url args) #(default-impl url "exists?" args)))
+(defmethod delete  :default [url & args] (apply-lazy-method :fs delete  (scheme-k url) (cons url args) #(default-impl url "delete"  args)))
+(defmethod ls      :default [url & args] (apply-lazy-method :fs ls      (scheme-k url) (cons url args) #(default-impl url "ls"      args)))
+(defmethod mkdir   :default [url & args] (apply-lazy-method :fs mkdir   (scheme-k url) (cons url args) #(default-impl url "mkdir"   args)))
+(defmethod attrs   :default [url & args] (apply-lazy-method :fs attrs   (scheme-k url) (cons url args) #(default-impl url "attrs"   args)))
+
+(defmethod stat    :default [url & args] (apply-lazy-method :fs stat    (scheme-k url) (cons url args) (fn [] {:size (size url) :version nil})))
+
+; For implementations of `copy` that can't do better for some URLs
+(defn copy-via-streams [from-url to-url]
+  (with-open [is (if (resume?) (resumable-from from-url) (from from-url))
+              os (to to-url)]
+    (transfer is os)))
+
+(defmethod copy    :default [from-url to-url & args] (apply-lazy-method :fs copy (scheme-k to-url) (list* from-url to-url args)
+                                                                        #(copy-via-streams from-url to-url)))
+
+(defmethod ext->is->is :default [ext] (apply-lazy-method :codecs ext->is->is ext [ext] (constantly nil)))
+(defmethod ext->os->os :default [ext] (apply-lazy-method :codecs ext->os->os ext [ext] (constantly nil)))
+
+; Recursive copy
+;
+; :parallelism    -- max number of files being copied concurrently
+; :skip-unchanged -- skip files that exist in `to-url` with the same size, and with the same ETag (S3 -> S3, when both
+;                    are plain MD5s) and not older modification time (when both sides report them)
+; :progress       -- (fn [stats] ...) or nil. Called from worker threads after each file, `stats` as returned below
+;
+(def default-opts-copy-tree {:parallelism    8
+                             :skip-unchanged false
+                             :progress       nil})
+
+(def ^:private max-copy-tree-errors 100)
+
+(defn unchanged? [src dst]                                  ; src, dst -- entries returned by `ls`
+  (let [plain-etag #(if (and % (not (str/includes? % "-"))) % nil)] ; multipart ETags depend on part sizes
+    (boolean
+      (and dst
+           (= (:size src) (:size dst))
+           (or (not (and (plain-etag (:etag src)) (plain-etag (:etag dst))))
+               (= (:etag src) (:etag dst)))
+           (or (not (and (:modified src) (:modified dst)))
+               (not (.before ^Date (:modified dst) (:modified src))))))))
 
 ; Example:
-; (ns myns
-;   (:require [uio.uio :as uio]      ; loads implementation
-;             [uio.impl :as impl]))
+; (copy-tree "hdfs:///path/to/dir/" "s3://bucket/path/to/dir/" {:skip-unchanged true})
+; => {:files 10 :bytes 1024 :dirs 2 :skipped 0 :failed 0 :errors [] :elapsed-ms 300 :bytes-per-sec 3413}
 ;
-; (uio.impl/list-available-implementations)
-; => {:fs     [:file :hdfs :http :https :mem :res :s3 :sftp]
-;     :codecs [:bz2 :gz :xz]}
+; NOTE: failed files don't stop the copy, they're counted in :failed (the first 100 are in :errors)
+(defn copy-tree [from-url to-url & args]
+  (let [opts      (get-opts default-opts-copy-tree from-url args)
+        from-base (ensure-ends-with-delimiter (normalize from-url))
+        to-base   (ensure-ends-with-delimiter (normalize to-url))
+        mkdir?    (some? (lazy-method :fs mkdir (scheme-k to-base))) ; e.g. HTTP has no directories to create
+        url->dst  (if (:skip-unchanged opts)
+                    (try (->> (ls to-base {:recurse true :attrs true})
+                              (filter :size)
+                              (map (juxt :url identity))
+                              (into {}))
+                         (catch Exception _ {}))            ; e.g. `to-url` doesn't exist yet
+                    {})
+        started   (System/currentTimeMillis)
+        *stats    (atom {:files 0 :bytes 0 :dirs 0 :skipped 0 :failed 0 :errors []})
+        ->stats   #(let [stats @*stats
+                         ms    (max 1 (- (System/currentTimeMillis) started))]
+                     (assoc stats :elapsed-ms    ms
+                                  :bytes-per-sec (quot (* 1000 (:bytes stats)) ms)))
+        update!   (fn [f]
+                    (swap! *stats f)
+                    (when-let [progress (:progress opts)]
+                      (progress (->stats))))
+        fail!     (fn [url e]
+                    (update! #(-> (update % :failed inc)
+                                  (update :errors (fn [es] (cond-> es
+                                                                   (< (count es) max-copy-tree-errors)
+                                                                   (conj {:url url :error e})))))))
+        n         (:parallelism opts)
+        permits   (Semaphore. (* 2 n))                      ; don't queue more than that while listing
+        pool      (Executors/newFixedThreadPool n (->daemon-thread-factory "uio-copy-tree"))]
+    (try
+      (if mkdir? (mkdir to-base))
+
+      (doseq [src (ls from-base {:recurse true :attrs (:skip-unchanged opts)})]
+        (let [src-url (:url src)
+              dst-url (if (str/starts-with? src-url from-base)
+                        (str to-base (subs src-url (count from-base))))]
+          (cond (= src-url from-base)              nil       ; some `ls` implementations list the base dir too
+                (:error src)                       (fail! src-url (:error src))
+                (not dst-url)                      (fail! src-url (Exception. (str "Expected URL to start with " from-base)))
+                (:dir src)                         (try (if mkdir? (mkdir dst-url))
+                                                        (update! #(update % :dirs inc))
+                                                        (catch Exception e (fail! src-url e)))
+                (unchanged? src (url->dst dst-url)) (update! #(update % :skipped inc))
+                :else                              (do (.acquire permits)
+                                                       (.submit pool ^Runnable
+                                                                (bound-fn []
+                                                                  (try (copy src-url dst-url)
+                                                                       (update! #(-> (update % :files inc)
+                                                                                     (update :bytes + (or (:size src) 0))))
+                                                                       (catch Exception e (fail! src-url e))
+                                                                       (finally (.release permits)))))))))
+      (.shutdown pool)
+      (.awaitTermination pool Long/MAX_VALUE TimeUnit/MILLISECONDS)
+      (->stats)
+
+      (finally
+        (.shutdownNow pool)))))
+
+; Batches
 ;
-(defn list-available-implementations []
-  {:fs     (-> (.getMethodTable from)        (dissoc :default) keys sort vec)
-   :codecs (-> (.getMethodTable ext->is->is) (dissoc :default) keys sort vec)})
+; :parallelism -- max number of calls (or batch requests, e.g. S3 DeleteObjects) running concurrently
+;
+(def default-opts-batch {:parallelism 8})
+
+; Calls (f x) for each of `xs` on up to `n` threads, without holding more than 2n of `xs` at a time.
+; Failures don't stop the other calls: the first one is rethrown (with the number of failures) when all calls are done
+(defn run-concurrently [n f xs]
+  (let [permits  (Semaphore. (* 2 n))
+        pool     (Executors/newFixedThreadPool n (->daemon-thread-factory "uio-batch"))
+        *failed  (atom [0 nil])                             ; [count first-exception]
+        *total   (atom 0)]
+    (try
+      (doseq [x xs]
+        (swap! *total inc)
+        (.acquire permits)
+        (.submit pool ^Runnable
+                 (bound-fn []
+                   (try (f x)
+                        (catch Exception e (swap! *failed (fn [[n first-e]] [(inc n) (or first-e e)])))
+                        (finally (.release permits))))))
+      (.shutdown pool)
+      (.awaitTermination pool Long/MAX_VALUE TimeUnit/MILLISECONDS)
+
+      (let [[n ^Exception e] @*failed]
+        (if e
+          (die (str n " of " @*total " failed, the first one with: " (.getMessage e)) e)))
+
+      (finally
+        (.shutdownNow pool)))))
+
+(defn- by-scheme [urls]
+  (->> urls
+       (group-by scheme-k)
+       (vals)))
+
+(defmethod delete-batch :default [urls opts] (apply-lazy-method :fs delete-batch (scheme-k (first urls)) [urls opts]
+                                                                 #(run-concurrently (:parallelism opts) delete urls)))
+
+(defmethod exists-batch :default [urls opts] (apply-lazy-method :fs exists-batch (scheme-k (first urls)) [urls opts]
+                                                                 #(let [m (ConcurrentHashMap.)]
+                                                                    (run-concurrently (:parallelism opts) (fn [url] (.put m url (exists? url))) urls)
+                                                                    (into {} m))))
+
+(defmethod size-batch   :default [urls opts] (apply-lazy-method :fs size-batch (scheme-k (first urls)) [urls opts]
+                                                                 #(let [m (ConcurrentHashMap.)]
+                                                                    (run-concurrently (:parallelism opts) (fn [url] (.put m url (size url))) urls)
+                                                                    (into {} m))))
 
+; Example:
+; (delete-many ["s3://bucket/a.txt" "s3://bucket/b.txt" "file:///tmp/c.txt"] {:parallelism 16})
+; => nil
+(defn delete-many [urls & args]
+  (let [opts (get-opts default-opts-batch (first urls) args)]
+    (doseq [us (by-scheme urls)]
+      (delete-batch us opts))))
+
+; => {"s3://bucket/a.txt" true "s3://bucket/b.txt" false}
+(defn exists-many [urls & args]
+  (let [opts (get-opts default-opts-batch (first urls) args)]
+    (->> (by-scheme urls)
+         (map #(exists-batch % opts))
+         (apply merge {}))))
+
+; => {"s3://bucket/a.txt" 123 "s3://bucket/b.txt" 456}
+(defn size-many [urls & args]
+  (let [opts (get-opts default-opts-batch (first urls) args)]
+    (->> (by-scheme urls)
+         (map #(size-batch % opts))
+         (apply merge {}))))
+
+; Recursive delete: files under `url` (listed with `ls`), then directories (deepest first), then `url` itself
+;
+; Example:
+; (delete-tree "s3://bucket/path/to/dir/")
+; => nil
+(defn- delete-tree-by-ls [url args]
+  (let [opts  (get-opts default-opts-batch url args)
+        base  (ensure-ends-with-delimiter (normalize url))
+        *dirs (atom [])
+        files (keep (fn [e] (cond (:error e)        (die (str "Couldn't list " (:url e)) (:error e))
+                                  (:dir e)          (do (swap! *dirs conj (:url e)) nil)
+                                  (= base (:url e)) nil
+                                  :else             (:url e)))
+                    (ls base {:recurse true}))]
+    (if (seq files)                                         ; streamed: not all URLs are held in memory
+      (delete-batch files opts))
+    (doseq [d (sort-by count > @*dirs)]
+      (delete d))
+    (if (exists? url)
+      (delete url))))
+
+(defmethod delete-tree :default [url & args] (apply-lazy-method :fs delete-tree (scheme-k url) (cons url args) #(delete-tree-by-ls url args)))
+
+; Metrics of `from`, `to`, `size`, `stat`, `exists?`, `delete`, `delete-tree`, `ls`, `mkdir`, `attrs` and `copy` calls, by scheme + host.
+; Off by default. Latency of `ls` is the time it takes to return a (lazy) listing. Bytes are counted as they pass through
+; streams returned by `from`/`to` (i.e. before `from*`/`to*` codecs). Percentiles are upper bounds of power-of-2 buckets.
+;
+; Example:
+; (enable-metrics)                                          ; or (enable-metrics {:jmx true}) to also register MXBeans
+; (slurp (from "s3://bucket/file.txt"))
+; (metrics)
+; => {"s3://bucket/" {:bytes-read          123
+;                     :bytes-written       0
+;                     :open-input-streams  0
+;                     :open-output-streams 0
+;                     :ops                 {:from {:calls      1
+;                                                  :errors     0
+;                                                  :in-flight  0
+;                                                  :latency-ms {:mean 85.3 :p50 85.3 :p90 85.3 :p99 85.3 :max 85.3}}}}}
+;
+(def default-opts-enable-metrics {:jmx false})
+
+(defn enable-metrics [& args]
+  (Metrics/enable (boolean (:jmx (get-opts default-opts-enable-metrics nil args)))))
+
+(defn disable-metrics []
+  (Metrics/disable))
+
+(defn reset-metrics []
+  (Metrics/reset))
+
+(defn metrics []
+  (into (sorted-map)
+        (for [[k ^Metrics$Host h] (Metrics/hosts)]
+          [k {:bytes-read          (.getBytesRead h)
+              :bytes-written       (.getBytesWritten h)
+              :open-input-streams  (.getOpenInputStreams h)
+              :open-output-streams (.getOpenOutputStreams h)
+              :ops                 (into (sorted-map)
+                                         (for [[op ^Metrics$Op o] (.ops h)]
+                                           [(keyword op) {:calls      (.getCalls o)
+                                                          :errors     (.getErrors o)
+                                                          :in-flight  (.getInFlight o)
+                                                          :latency-ms {:mean (.getMeanLatencyMillis o)
+                                                                       :p50  (.getP50LatencyMillis o)
+                                                                       :p90  (.getP90LatencyMillis o)
+                                                                       :p99  (.getP99LatencyMillis o)
+                                                                       :max  (.getMaxLatencyMillis o)}}]))}])))
+
+; Lazy listings hold resources (connections, leased clients, thread pools) until fully realized or GC'ed.
+; Callers that may stop early can collect and close them explicitly:
+;
+; Example:
+; (let [[xs close] (collect-closers #(ls "sftp://host/path/" {:recurse true}))]
+;   (try (take 10 xs)
+;        (finally (close))))
+;
 (defn close-when-realized-or-finalized [->close xs]
   (let [f (Streams$Finalizer. ->close)]
+    (if *closers*
+      (swap! *closers* conj f))
     (concat xs (lazy-seq (.close f)))))
+
+(defn collect-closers [f]                                   ; => [(f) (fn [] ...closes what (f) left open)]
+  (let [*cs (atom [])]
+    [(binding [*closers* *cs]
+       (f))
+     #(run! (fn [^java.lang.AutoCloseable c] (.close c)) @*cs)]))
+
+; Recursive listing
+;
+; Lists a tree of dirs depth-first, with entries of each dir sorted by `:url`. When dir URLs end with a delimiter,
+; this is the same order `intercalate-with-dirs` expects. With `parallelism` > 1, up to that many dirs are listed
+; concurrently ahead of the consumer (up to 4 * `parallelism` listings are kept in memory).
+;
+; list-dir -- (fn [dir] ...) => [[entry sub-dir-or-nil] ...], where `sub-dir` is passed to `list-dir` to descend.
+;             Called from worker threads with the caller's bindings (e.g. `*config*`). Its exceptions are
+;             thrown to the consumer, in the same order as with `parallelism` = 1
+;
+; Example:
+; (list-tree (fn [^File d] (for [f (.listFiles d)]
+;                            [{:url (str (.toURI f))} (if (.isDirectory f) f)]))
+;            (File. "/tmp")
+;            true
+;            4)
+;
+(defn list-tree [list-dir root recurse? parallelism]
+  (let [list-dir  (bound-fn [dir] (->> (list-dir dir)
+                                       (sort-by (comp :url first))
+                                       (vec)))
+        pool      (if (and recurse? (< 1 parallelism))
+                    (Executors/newFixedThreadPool parallelism (->daemon-thread-factory "uio-ls")))
+        lock      (Object.)
+        pending   (ArrayDeque.)                             ; slots to submit, the one needed soonest is first
+        *ahead    (atom 0)                                  ; submitted, but not taken yet
+        fill!     (fn []
+                    (locking lock
+                      (while (and (< @*ahead (* 4 parallelism))
+                                  (not (.isEmpty pending)))
+                        (let [slot (.pop pending)
+                              dir  (:dir @slot)]
+                          (when (= :pending (:state @slot))
+                            (swap! *ahead inc)
+                            (reset! slot {:state  :submitted
+                                          :future (.submit pool ^Callable #(list-dir dir))}))))))
+        take!     (fn [slot]                                ; => [[entry sub-dir-or-nil] ...]
+                    (let [{:keys [state dir ^Future future]} (locking lock
+                                                               (let [s @slot]
+                                                                 (reset! slot {:state :taken})
+                                                                 (when (= :submitted (:state s))
+                                                                   (swap! *ahead dec))
+                                                                 s))]
+                      (if (= :submitted state)
+                        (try (.get future)
+                             (catch ExecutionException e (throw (.getCause e))))
+                        (list-dir dir))))                   ; not submitted yet => list in this thread
+        walk      (fn walk [slot]
+                    (lazy-seq
+                      (let [entries+dirs (take! slot)
+                            slots        (mapv (fn [[_ dir]] (if dir (atom {:state :pending :dir dir})))
+                                               entries+dirs)]
+                        (when pool
+                          (locking lock
+                            (doseq [s (rseq slots) :when s]
+                              (.push pending s)))
+                          (fill!))
+                        (mapcat (fn [[entry _] slot]
+                                  (cons entry (if slot (walk slot))))
+                                entries+dirs
+                                slots))))]
+    (if recurse?
+      (close-when-realized-or-finalized #(if pool (.shutdownNow pool))
+                                        (walk (atom {:state :pending :dir root})))
+      (map first (list-dir root)))))
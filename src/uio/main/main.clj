@@ -2,9 +2,9 @@
   (:require [uio.uio :as uio]
             [uio.impl :refer [die] :as impl]
             [clojure.string :as str]
-            [clojure.java.io :as jio]
             [clojure.tools.cli :refer [parse-opts]])
-  (:import [org.apache.log4j Level Logger ConsoleAppender PatternLayout]
+  (:import [java.io FileDescriptor FileInputStream FileOutputStream]
+           [org.apache.log4j Level Logger ConsoleAppender PatternLayout]
            [java.text SimpleDateFormat]
            [java.util TimeZone])
   (:gen-class))
@@ -80,6 +80,58 @@
     "s"
     ""))
 
+(defn copy-stats->str [{:keys [files bytes skipped failed bytes-per-sec]}]
+  (str "copied " files " file" (s-if-plural files) " (" (size->human-size bytes) ")"
+       ", skipped " skipped
+       ", failed " failed
+       ", " (size->human-size bytes-per-sec) "/s"))
+
+(defn copy-tree-with-progress [from-url to-url opts]
+  (let [*printed-ms (atom 0)
+        stats       (uio/copy-tree from-url to-url
+                                   (assoc opts :progress (fn [stats]                 ; called from many threads
+                                                           (let [now     (System/currentTimeMillis)
+                                                                 printed @*printed-ms]
+                                                             (when (and (< 1000 (- now printed))
+                                                                        (compare-and-set! *printed-ms printed now))
+                                                               (err (str "\r" (copy-stats->str stats))))))))]
+    (errln (str "\r" (copy-stats->str stats)))
+    (doseq [e (:errors stats)]
+      (errln "Couldn't copy" (:url e) "--" (:error e)))
+    (if (pos? (:failed stats))
+      (die exit-1))))
+
+; e.g. "5eb63bbbe01eeed093cb22bb8f5acdc3  s3://bucket/file.txt" -- like `md5sum`, with one column per algorithm
+(defn checksum->str [algorithms entry]
+  (str (str/join " " (map #(get entry (keyword (str/lower-case %))) algorithms))
+       "  "
+       (:url entry)))
+
+(defn checksum-tree-and-print [url algorithms parallelism]
+  (let [entries (uio/checksum-tree url {:algorithms  algorithms
+                                       :parallelism parallelism
+                                       :progress    (fn [entry]                  ; called from many threads
+                                                      (locking *out*
+                                                        (if (:error entry)
+                                                          (errln "Couldn't checksum" (:url entry) "--" (:error entry))
+                                                          (println (checksum->str algorithms entry)))))})]
+    (if (some :error entries)
+      (die exit-1))))
+
+; e.g. "s3://bucket/ read 1.2G, written 0B
+;        from   3 calls, 0 errors, latency ms mean 12.3 p50 16.4 p99 32.8 max 31.2"
+(defn metrics->str [metrics]
+  (str/join "\n"
+            (for [[host {:keys [bytes-read bytes-written ops]}] metrics]
+              (str host " read " (size->human-size bytes-read) ", written " (size->human-size bytes-written)
+                   (apply str
+                          (for [[op {:keys [calls errors latency-ms]}] ops]
+                            (format "\n  %-8s %d call%s, %d error%s, latency ms mean %.1f p50 %.1f p99 %.1f max %.1f"
+                                    (name op)
+                                    calls (s-if-plural calls)
+                                    errors (s-if-plural errors)
+                                    (:mean latency-ms) (:p50 latency-ms) (:p99 latency-ms) (:max latency-ms))))))))
+
 (defn op-or-alias->op [op]
   (or ({"cat"  "from"
         "cat*" "from*"
@@ -110,7 +162,24 @@
   (println "                      uio delete   fs:///path/to/file.txt")
   (println "                      uio mkdir    fs:///path/to/dir/")
   (println)
+  (println "                      uio delete [-p N] fs:///path/to/file-1.txt fs:///path/to/file-2.txt ...")
+  (println "                      uio delete -r [-p N] fs:///path/to/dir/")
+  (println "                              -r - delete the directory with all files and directories under it")
+  (println "                              -p N - delete up to N files (S3: batches of 1000) concurrently (default: 8)")
+  (println)
   (println "                      uio copy     fs:///source/path/to/file.txt fs:///destination/path/to/file.txt")
+  (println "                      uio copy -r  fs:///source/path/to/dir/ fs:///destination/path/to/dir/")
+  (println "                      uio sync     fs:///source/path/to/dir/ fs:///destination/path/to/dir/")
+  (println "                              -r - copy files and directories recursively")
+  (println "                                   (`sync` does the same, but skips files that didn't change)")
+  (println "                              -p N - copy up to N files concurrently (default: 8)")
+  (println)
+  (println "                      uio checksum [-a ALGORITHMS] fs:///path/to/file.txt")
+  (println "                      uio checksum -r [-a ALGORITHMS] [-p N] fs:///path/to/dir/")
+  (println "                              -a md5,sha-256,s3-etag - digests to print, one column each (default: md5)")
+  (println "                                   S3 ETags are used when they already are the digest (nothing is read)")
+  (println "                              -r - checksum all files under the directory, in any order")
+  (println "                              -p N - read up to N files concurrently (default: 8)")
   (println)
   (println "                      uio ls [-lh] fs:///path/to/dir/")
   (println "                              -l - list in long format (show attributes)")
@@ -119,11 +188,15 @@
   (println "                      uio --help - print this help")
   (println)
   (println "Common flags:                 -v - print stack traces and annoying logs to stderr")
+  (println "                         --stats - print bytes, calls, errors and latencies per host to stderr")
+  (println "                     --retries N - make `from`, `from*` and `copy` reopen a source at the current offset")
+  (println "                                   up to N times after I/O errors, e.g. a reset connection (default: 0)")
   (println)
   (println "Experimental (will change in future!):")
   (println "                      uio ls [-rs] fs:///path/to/dir/")
   (println "                              -r - list files and directories recursively")
   (println "                              -s - print total file size, file and directory count")
+  (println "                              -p N - list up to N directories concurrently (default: 1)")
   (println)
   (println)
   (println "Version:" (get-version))
@@ -134,7 +207,9 @@
 (defn run [[op a b :as args]
            {:keys [recurse
                    attrs
-                   human-readable] :as opts}]
+                   human-readable
+                   parallelism
+                   algorithms] :as opts}]
 
   ; TODO validate arg count
   ; TODO validate 1st and 2args are urls
@@ -142,23 +217,30 @@
   (case (op-or-alias->op op)
     "help"    (print-usage)
 
-    "from"    (with-open [is (uio/from  a)] (jio/copy is System/out :buffer-size 8192))
-    "from*"   (with-open [is (uio/from* a)] (jio/copy is System/out :buffer-size 8192))
+    ; stdin/stdout as raw file streams: when redirected from/to a file, `transfer` uses `FileChannel.transferTo`
+    "from"    (with-open [is (if (impl/resume?)
+                               (uio/resumable-from a)
+                               (uio/from a))]
+                (uio/transfer is (FileOutputStream. FileDescriptor/out)))
+    "from*"   (with-open [is (uio/from* a)] (uio/transfer is (FileOutputStream. FileDescriptor/out)))
 
-    "to"      (with-open [os (uio/to    a)] (jio/copy System/in os  :buffer-size 8192))
-    "to*"     (with-open [os (uio/to*   a)] (jio/copy System/in os  :buffer-size 8192))
+    "to"      (with-open [os (uio/to    a)] (uio/transfer (FileInputStream. FileDescriptor/in) os))
+    "to*"     (with-open [os (uio/to*   a)] (uio/transfer (FileInputStream. FileDescriptor/in) os))
 
     "size"    (println (uio/size a))
     "exists?" (if-not (uio/exists? a) (die exit-1))
 
-    "delete"  (uio/delete a)
+    "delete"  (cond recurse              (uio/delete-tree a {:parallelism (or parallelism 8)})
+                    (next (rest args))   (uio/delete-many (rest args) {:parallelism (or parallelism 8)})
+                    :else                (uio/delete a))
 
     "mkdir"   (uio/mkdir a)
 
     ; TODO take a sample of first 32 and calculate max, keep rolling, change the pattern if numbers grow
     ; TODO remove columns completely if there are no values for that column?
-    "ls"      (->> (uio/ls a {:recurse recurse
-                              :attrs   attrs})
+    "ls"      (->> (uio/ls a {:recurse     recurse
+                              :attrs       attrs
+                              :parallelism (or parallelism 1)})
                    (reduce
                      (fn [stats f]
                        (let [url (cond-> (:url f)
@@ -196,7 +278,17 @@
                                      ", " (:files %) " file" (s-if-plural (:files %))
                                      ", " (:dirs %)  " dir"  (s-if-plural (:dirs %)))))))
 
-    "copy"    (uio/copy a b) ; TODO check url-b
+    "copy"    (if recurse                                   ; TODO check url-b
+                (copy-tree-with-progress a b {:parallelism (or parallelism 8)})
+                (uio/copy a b))
+
+    "checksum" (let [algorithms (or algorithms ["MD5"])]
+                 (if recurse
+                   (checksum-tree-and-print a algorithms (or parallelism 8))
+                   (println (checksum->str algorithms (uio/checksum a {:algorithms algorithms})))))
+
+    "sync"    (copy-tree-with-progress a b {:parallelism    (or parallelism 8)
+                                            :skip-unchanged true})
 
     "_export" (->> impl/*config*
                    (map (fn [[url m]]
@@ -227,11 +319,18 @@
 ;
 (defn -main [& args]
   (let [cli (parse-opts args
-                        [["-r" "--recurse"        "Make `ls` recursive"                                     :default false]
+                        [["-r" "--recurse"        "Make `ls`, `copy`, `delete` and `checksum` recursive"    :default false]
                          ["-l" "--attrs"          "Make `ls` list in long format (show attributes)"         :default false]
                          ["-s" "--summarize"      "Make `ls` print total file size, file and dir count"     :default false]
                          ["-h" "--human-readable" "Print sizes in human readable format (e.g., 1K 234M 2G)" :default false]
+                         ["-p" "--parallelism N"  "Make `copy -r`, `sync` and `delete` process (`ls -r` list) up to N files (dirs) concurrently"
+                          :parse-fn #(Integer/parseInt %)]
+                         ["-a" "--algorithms LIST" "Make `checksum` print these digests (e.g. md5,sha-256,s3-etag)"
+                          :parse-fn #(str/split % #",")]
                          ["-v" "--verbose"        "Print stack traces"                                      :default false]
+                         [nil  "--stats"          "Print I/O metrics per scheme and host to stderr"         :default false]
+                         [nil  "--retries N"      "Make `from`, `from*` and `copy` resume reading up to N times after I/O errors"
+                          :parse-fn #(Integer/parseInt %)]
                          [nil  "--help"           "Show help"                                               :default false]])]
 
     (if (-> cli :options :verbose)
@@ -266,8 +365,15 @@
                                   (try (load-s3cfg)
                                        (catch Exception e (when (-> cli :options :verbose)
                                                             (errln "Couldn't load ~/.s3cfg, skipping:" e))))))))
-          (run (:arguments cli)
-               (:options cli)))
+          (if (-> cli :options :stats)
+            (impl/enable-metrics))
+          (try (uio/with (if-let [n (-> cli :options :retries)]
+                           {:resume.retries n}
+                           {})
+                 (run (:arguments cli)
+                      (:options cli)))
+               (finally (when (-> cli :options :stats)
+                          (errln (metrics->str (impl/metrics)))))))
 
         (catch Throwable e (when-not (= exit-1 (.getMessage e))
                              (errln (str e))
@@ -1,7 +1,6 @@
 (ns uio.uio
   (:require [clojure.string :as str]
-            [uio.impl :as i])
-  (:import [uio.fs Streams]))
+            [uio.impl :as i]))
 
 ; public API
 (def from                 i/from)
@@ -9,17 +8,32 @@
 (def size                 i/size)
 (def exists?              i/exists?)
 (def delete               i/delete)
+(def delete-many          i/delete-many)
+(def delete-tree          i/delete-tree)
+(def exists-many          i/exists-many)
+(def size-many            i/size-many)
 (def ls                   i/ls)
 (def mkdir                i/mkdir)
 (def attrs                i/attrs)
+(def stat                 i/stat)
 (def copy                 i/copy)
+(def copy-tree            i/copy-tree)
+(def checksum             i/checksum)
+(def checksum-tree        i/checksum-tree)
 (def from*                i/from*)
+(def resumable-from       i/resumable-from)
 (def to*                  i/to*)
 (def ext->is->is          i/ext->is->is)
 (def ext->os->os          i/ext->os->os)
 
 (def with-fn              i/with-fn)
 
+; metrics
+(def enable-metrics       i/enable-metrics)
+(def disable-metrics      i/disable-metrics)
+(def reset-metrics        i/reset-metrics)
+(def metrics              i/metrics)
+
 ; TODO resolve the clash with i/with
 (defmacro with [config & body]
   `(with-fn ~config (fn [] ~@body)))
@@ -49,6 +63,7 @@
 ; stream helper fns
 (def is->bytes            i/is->bytes)
 (def bytes->is            i/bytes->is)
+(def transfer             i/transfer)
 (def with-baos->bytes     i/with-baos->bytes)
 
 ; codec helper fns
@@ -59,41 +74,12 @@
 (def ->countable          i/->countable)                    ; use with (count ...)
 (def ->digestible         i/->digestible)                   ; use with (close-and-digest ...)
 (def close-and-digest     i/close-and-digest)
+(def ->multi-digestible   i/->multi-digestible)             ; use with (close-and-digests ...)
+(def close-and-digests    i/close-and-digests)
 
 ; TODO consider replacing the above with something like:
 ; (defmacro pull-all [ns]
 ;   `(do ~@(for [[sym var] (ns-publics ns)]
 ;            `(def ~sym ~var))))
 
-; TODO report the error instead of disabling an impl: when called, tell what classes are missing + give a hint about :exclusions
-; TODO check if namespace depends in `uio.uio` and fail if it does
-(defn require-if-all-deps-are-in-cp [ns]
-  (let [class-available? #(try (Class/forName % false (.getClassLoader Streams))
-                               true
-                               (catch ClassNotFoundException _ false))
-        resource-path    (str "/" (str/replace ns "." "/") ".clj")
-        s-exp            (clojure.edn/read-string (slurp (.getResourceAsStream Streams resource-path)))
-        dep-classes      (mapcat #(or (and (seq? %)
-                                           (= :import (first %))
-                                           (sort (mapcat (fn [[package & classes]] ; => ["java.io.IOException" "java.net.URL" ... ]
-                                                           (for [c classes]
-                                                             (str package "." c)))
-                                                         (drop 1 %))))
-                                      [])
-                                 s-exp)]
-
-
-    (when (every? class-available? dep-classes)
-      (require ns))))
-
-(doseq [ns '[uio.fs.file
-             uio.fs.hdfs
-             uio.fs.https
-             uio.fs.mem
-             uio.fs.res
-             uio.fs.s3
-             uio.fs.sftp
-             uio.codecs.bz2
-             uio.codecs.gz
-             uio.codecs.xz]]
-  (require-if-all-deps-are-in-cp ns))
+; Implementations of schemes and codecs are loaded on first use, see `uio.impl/implementations`
@@ -1,6 +1,10 @@
 package uio;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 import uio.Uio.*;
 
 /**
@@ -11,9 +15,10 @@ import uio.Uio.*;
  *   4. Checking for existence
  *   5. Creating directories
  *   6. Copying files
+ *   7. Asynchronous calls
  */
 public class Example {
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) throws Exception {
         // 1. Reading and Writing
         // ... give me an InputStream from ... HDFS, S3, SFTP, local FS, memory, HTTP, class loader resource
         try (InputStream is = Uio.from("hdfs:///path/to.txt")) {
@@ -62,6 +67,14 @@ public class Example {
                 size += e.getSize();
         System.out.println("Total size: " + size);
 
+        // ... stream entries and release connections as soon as the stream is closed
+        //     (even if it wasn't read till the end). Attributes in `getExtra()` are converted only when accessed
+        try (Stream<Entry> s = Uio.list("s3://bucket/path/to/", Opts.RECURSE)) {
+            s.filter(Entry::isFile)
+             .limit(10)
+             .forEach(e -> System.out.println(e.getUrl()));
+        }
+
 
         // 3. Deleting
         Uio.delete("file:///path/to/file.txt");
@@ -83,5 +96,18 @@ public class Example {
                  "s3://bucket/path/to/file.txt.gz");
         // ^^^ returns void, throws an exception if can't read source or write target file
         // ^^^ preserves the original content (does not attempt do decompress/compress files)
+
+
+        // 7. Asynchronous calls: same methods, run on virtual threads (JDK 21+) or a pool of 64 threads
+        try (UioAsync async = new UioAsync().limit("s3", 32)) {        // or `new UioAsync(myExecutor)`
+            CompletableFuture<Map<String, Long>> sizes = async.sizeMany(Arrays.asList("s3://bucket/a.txt",
+                                                                                      "s3://bucket/b.txt"));
+            // ^^^ up to 32 calls on s3:// URLs at once, the rest wait in a queue (not in threads)
+            System.out.println(sizes.get());
+
+            CompletableFuture<Void> copy = async.copy("hdfs:///path/to/big.gz", "s3://bucket/path/to/big.gz");
+            copy.cancel(true);
+            // ^^^ closes streams the copy opened, so it stops right away
+        }
     }
 }
@@ -1,10 +1,58 @@
 (ns uio.fs.test-Streams
   (:require [midje.sweet :refer :all]
             [uio.impl :as impl])
-  (:import [uio.fs Streams$TakeNInputStream]))
+  (:import [uio.fs Streams$TakeNInputStream Streams$ParallelRangeInputStream Streams$ConsumingOutputStream
+                   Streams$S3EtagDigest]))
 
 (facts "Streams$TakeNInputStream works"
   (->> (impl/bytes->is (.getBytes "hello world"))
        (Streams$TakeNInputStream. 5)
        slurp)
   => "hello")
+
+(facts "Streams$ParallelRangeInputStream works"
+  (let [bs         (.getBytes "hello parallel world")
+        open-range (fn [offset length] (java.io.ByteArrayInputStream. bs offset length))]
+
+    (slurp (Streams$ParallelRangeInputStream. open-range 0 (count bs) 3 4)) => "hello parallel world"
+    (slurp (Streams$ParallelRangeInputStream. open-range 6 8 5 2))          => "parallel"
+    (slurp (Streams$ParallelRangeInputStream. open-range 6 0 5 2))          => ""
+
+    (slurp (Streams$ParallelRangeInputStream. open-range 6 100 5 2))        => (throws java.io.IOException)))
+
+
+(facts "Streams$ConsumingOutputStream works"
+  (let [*result (promise)]
+    (with-open [os (Streams$ConsumingOutputStream. #(deliver *result (slurp %)) "test" 4 2)]
+      (.write os (.getBytes "hello "))
+      (.write os (int \c))
+      (.write os (.getBytes "onsumer")))
+    @*result => "hello consumer")
+
+  (let [os (Streams$ConsumingOutputStream. (fn [_] (throw (java.io.IOException. "boom"))) "test" 4 2)]
+    (dotimes [_ 10] (.write os (.getBytes "hello")))) => (throws java.io.IOException "boom")
+
+  (.close (Streams$ConsumingOutputStream. (fn [_] nil) "test" 4 2)) => nil
+  (let [os (Streams$ConsumingOutputStream. (fn [_] nil) "test" 4 2)]
+    (.write os (.getBytes "hello world"))
+    (.close os)) => (throws java.io.IOException "Consumer stopped before reading all bytes")
+  (let [os (Streams$ConsumingOutputStream. (fn [is] (.read is (byte-array 2))) "test" 4 4)]
+    (.write os (.getBytes "hello"))                         ; all chunks and EOF fit in the queue
+    (.close os)) => (throws java.io.IOException "Consumer stopped before reading all bytes"))
+
+
+(facts "Streams$S3EtagDigest ends a part only when more bytes come, like S3$S3OutputStream"
+  (let [etag (fn [part-size s]
+               (let [md (Streams$S3EtagDigest. part-size)
+                     bs (.digest md (.getBytes s))]
+                 (Streams$S3EtagDigest/etag bs (.getDigestedParts md))))
+        md5s (fn [& ss]                                     ; => MD5 of concatenated MD5s of `ss`
+               (let [md5 #(.digest (java.security.MessageDigest/getInstance "MD5") (.getBytes %))]
+                 (-> (java.security.MessageDigest/getInstance "MD5")
+                     (.digest (byte-array (mapcat md5 ss)))
+                     (javax.xml.bind.DatatypeConverter/printHexBinary)
+                     (.toLowerCase))))]
+
+    (etag 5 "")            => (str (md5s "") "-1")
+    (etag 5 "hello")       => (str (md5s "hello") "-1")
+    (etag 5 "hello world") => (str (md5s "hello" " worl" "d") "-3")))
@@ -0,0 +1,47 @@
+(ns uio.fs.test-cache
+  (:require [uio.fs.cache :as cache]
+            [uio.fs.file :refer [->file ->temp-dir]]
+            [uio.impl :refer :all]
+            [midje.sweet :refer :all]))
+
+(defn cache-size [dir]
+  (->> (file-seq (->file dir))
+       (filter #(.isFile %))
+       (map #(.length %))
+       (reduce +)))
+
+(facts "cache+ reads blocks once, serves ranges from them, and reads again when the file changes"
+  (let [dir   (->temp-dir "uio-test-cache-")
+        a     (str dir "a.txt")
+        s     (apply str (range 1000))                    ; 2890 bytes
+        mtime 1500000000000]
+    (spit (to a) s)
+    (.setLastModified (->file a) mtime)
+
+    (binding [*config* {:cache.dir (str (->file dir) "/cache") :cache.block-size 100}]
+      (slurp (from (str "cache+" a)))                          => s
+      (slurp (from (str "cache+" a) {:offset 150 :length 120})) => (subs s 150 270)
+      (slurp (from (str "cache+" a) {:offset 2800}))           => (subs s 2800)
+      (slurp (from (str "cache+" a) {:offset 5000}))           => ""
+      (cache-size (str dir "cache/"))                          => 2890
+
+      ; same size and mtime => blocks are read from cache
+      (spit (to a) (apply str (repeat (count s) "x")))
+      (.setLastModified (->file a) mtime)
+      (slurp (from (str "cache+" a) {:offset 0 :length 5}))    => "01234"
+
+      ; changed mtime => read again
+      (.setLastModified (->file a) (+ 1000 mtime))
+      (slurp (from (str "cache+" a) {:offset 0 :length 5}))    => "xxxxx"
+
+      (->> (range 8)
+           (map (fn [_] (future (slurp (from (str "cache+" a))))))
+           (doall)
+           (map deref)
+           (distinct))                                         => [(apply str (repeat (count s) "x"))]
+
+      (map :url (ls (str "cache+" dir)))                       => [(str "cache+" a) (str "cache+" dir "cache/")]
+      (size (str "cache+" a))                                  => 2890)
+
+    (cache/evict (->file (str dir "cache/")) 1000)
+    (<= (cache-size (str dir "cache/")) 1000)                  => true))
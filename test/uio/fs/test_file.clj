@@ -1,6 +1,75 @@
 (ns uio.fs.test-file
-  (:require [uio.impl :refer :all]
+  (:require [uio.fs.file :refer [->temp-dir]]
+            [uio.impl :refer :all]
             [midje.sweet :refer :all]))
 
 (facts "Listing root doesn't throw exceptions"
-  (ls "file:///") =not=> [])
\ No newline at end of file
+  (ls "file:///") =not=> [])
+
+(facts "File reads ranges, with and without mmap, and copies through channels"
+  (let [dir (->temp-dir "uio-test-file-")
+        a   (str dir "a.txt")
+        b   (str dir "b.txt")
+        c   (str dir "c.txt")]
+    (spit (to a) "0123456789")
+
+    (slurp (from a))                                  => "0123456789"
+    (slurp (from a {:offset 3}))                      => "3456789"
+    (slurp (from a {:offset 3 :length 4}))            => "3456"
+    (slurp (from a {:offset 20}))                     => ""
+    (slurp (from a {:mmap true}))                     => "0123456789"
+    (slurp (from a {:mmap true :offset 3 :length 4})) => "3456"
+    (slurp (from a {:mmap true :offset 8 :length 4})) => "89"
+    (slurp (from a {:mmap true :offset 20}))          => ""
+    (from a {:mmap 1 :unknown 2})                     => (throws Exception)
+
+    (spit (to b) "this text is longer than a.txt")
+    (copy a b)
+    (slurp (from b))                                  => "0123456789"
+
+    (with-open [is (from a {:offset 2})
+                os (to c)]
+      (transfer is os))
+    (slurp (from c))                                  => "23456789"
+
+    (doseq [u [a b c]] (delete u))
+    (delete dir)))
+
+(facts "Listing recursively in parallel returns the same entries in the same (sorted) order"
+  (let [dir (->temp-dir "uio-test-file-ls-")]
+    (doseq [f ["a/x.txt" "a/b/y.txt" "a/b/c/z.txt" "a/b.txt" "a0/q.txt" "e.txt"]]
+      (mkdir (parent-of (str dir f)))
+      (spit (to (str dir f)) "hi"))
+    (mkdir (str dir "empty"))
+
+    (let [urls (map :url (ls dir {:recurse true}))]
+      urls                                                            => (sort urls)
+      (count urls)                                                    => 11
+      (ls dir {:recurse true :parallelism 4})                         => (ls dir {:recurse true})
+      (map :url (ls dir))                                             => (map #(str dir %) ["a/" "a0/" "e.txt" "empty/"]))
+
+    ; as before, a dir that can't be listed is an entry with an `:error`
+    (map :url (ls (str dir "nope/") {:recurse true :parallelism 4}))  => [(str dir "nope/")]
+    (:error (first (ls (str dir "nope/"))))                           => #(instance? Exception %)))
+
+(facts "Files are checked, measured and deleted in batches, and directories recursively"
+  (let [dir (->temp-dir "uio-test-file-")
+        a   (str dir "a.txt")
+        b   (str dir "sub/b.txt")
+        c   (str dir "sub/sub/c.txt")]
+    (mkdir (str dir "sub/sub/"))
+    (spit (to a) "a")
+    (spit (to b) "bb")
+    (spit (to c) "ccc")
+
+    (size-many [a b c])                       => {a 1 b 2 c 3}
+    (exists-many [a b (str dir "none.txt")])  => {a true b true (str dir "none.txt") false}
+    (size-many [a (str dir "none.txt")])      => (throws Exception #"1 of 2 failed")
+
+    (delete-many [a] {:parallelism 2})
+    (exists? a)                               => false
+
+    (delete-tree (str dir "sub/"))
+    (exists? b)                               => false
+    (exists? (str dir "sub/"))                => false
+    (exists? dir)                             => true))
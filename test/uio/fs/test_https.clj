@@ -0,0 +1,117 @@
+(ns uio.fs.test-https
+  (:require [uio.impl :refer :all]
+            [uio.fs.https]
+            [midje.sweet :refer :all])
+  (:import [com.sun.net.httpserver HttpExchange HttpHandler HttpServer]
+           [java.net InetSocketAddress]
+           [java.util.concurrent Executors]))
+
+; Serves `bs` at any path but /404, honoring `Range` only when `ranges?`. Records [method range if-range client-port].
+; Options:
+;   :etag          -- sent in `ETag` and compared to `If-Range`
+;   :get-etag      -- ETag of the content served by GET (default: `:etag`), e.g. to simulate a change after HEAD
+;   :range-from-0? -- reply to every `Range` with content from offset 0 (a broken server or proxy)
+(defn ->server [^bytes bs ranges? *requests & [{:keys [etag get-etag range-from-0?]}]]
+  (doto (HttpServer/create (InetSocketAddress. "127.0.0.1" 0) 0)
+        (.createContext "/" (reify HttpHandler
+                              (handle [_ e]
+                                (let [if-range (.getFirst (.getRequestHeaders e) "If-Range")
+                                      range  (if (and ranges?
+                                                      (or (nil? if-range)
+                                                          (= if-range (or get-etag etag))))
+                                               (.getFirst (.getRequestHeaders e) "Range"))
+                                      [_ from to] (if range (re-find #"bytes=(\d+)-(\d*)" range))
+                                      len    (alength bs)
+                                      from   (if from (Long/parseLong from) 0)
+                                      to     (min (dec len) (if (seq to) (Long/parseLong to) len))
+                                      n      (- (inc to) from)]
+                                  (swap! *requests conj [(.getRequestMethod e) range if-range (.getPort (.getRemoteAddress e))])
+                                  (.close (.getRequestBody e))      ; otherwise the server closes the connection
+                                  (if ranges?
+                                    (.add (.getResponseHeaders e) "Accept-Ranges" "bytes"))
+                                  (if etag
+                                    (.add (.getResponseHeaders e) "ETag" (if (= "HEAD" (.getRequestMethod e))
+                                                                           etag
+                                                                           (or get-etag etag))))
+                                  (cond (= "/404" (.getPath (.getRequestURI e)))
+                                        (.sendResponseHeaders e 404 -1)
+
+                                        (= "HEAD" (.getRequestMethod e))
+                                        (do (.add (.getResponseHeaders e) "Content-Length" (str len))
+                                            (.sendResponseHeaders e 200 -1))
+
+                                        (<= len from)
+                                        (.sendResponseHeaders e 416 -1)
+
+                                        :else
+                                        (do (if range
+                                              (.add (.getResponseHeaders e) "Content-Range" (if range-from-0?
+                                                                                              (str "bytes 0-" (- to from) "/" len)
+                                                                                              (str "bytes " from "-" to "/" len))))
+                                            (.sendResponseHeaders e (if range 206 200) n)
+                                            (.write (.getResponseBody e) bs (int from) (int n))))
+                                  (.close e)))))
+        (.setExecutor (Executors/newFixedThreadPool 8 (->daemon-thread-factory "test-http-server")))
+        (.start)))
+
+(defn url-of [^HttpServer s path]
+  (str "http://127.0.0.1:" (.getPort (.getAddress s)) path))
+
+(facts "HTTP reads ranges, splits downloads into segments and reuses connections"
+  (let [bs        (byte-array (map #(unchecked-byte (* 7 %)) (range 100000)))
+        *requests (atom [])
+        s         (->server bs true *requests)
+        url       (url-of s "/data.bin")]
+    (try
+      (size url)                                                 => 100000
+      (exists? url)                                              => true
+      (exists? (url-of s "/404"))                                => false
+      (seq (is->bytes (from url)))                               => (seq bs)
+      (seq (is->bytes (from url {:offset 99990 :length 100})))   => (seq (drop 99990 bs))
+      (seq (is->bytes (from url {:offset 200000})))              => nil
+      (->> @*requests (map last) distinct count)                 => 1 ; one connection for all calls above
+
+      (reset! *requests [])
+      (seq (is->bytes (from url {:parallelism 4 :chunk-size 7000 :offset 5 :length 99000}))) => (seq (->> bs (drop 5) (take 99000)))
+      (->> @*requests (map first) frequencies)                   => {"HEAD" 1 "GET" 15}
+
+      (finally (.stop s 0)))))
+
+(facts "HTTP falls back to one connection when the server doesn't accept ranges"
+  (let [bs        (byte-array (map unchecked-byte (range 50000)))
+        *requests (atom [])
+        s         (->server bs false *requests)
+        url       (url-of s "/data.bin")]
+    (try
+      (seq (is->bytes (from url {:offset 10 :length 20})))       => (seq (->> bs (drop 10) (take 20)))
+      (reset! *requests [])
+      (seq (is->bytes (from url {:parallelism 4 :chunk-size 1000}))) => (seq bs)
+      (map first @*requests)                                     => ["HEAD" "GET"]
+
+      (finally (.stop s 0)))))
+
+(facts "HTTP segments are requested with `If-Range`, and fail when the file changed or the range doesn't match"
+  (let [bs        (byte-array (map unchecked-byte (range 50000)))
+        *requests (atom [])]
+    (let [s   (->server bs true *requests {:etag "\"v1\""})
+          url (url-of s "/data.bin")]
+      (try
+        (seq (is->bytes (from url {:parallelism 4 :chunk-size 10000}))) => (seq bs)
+        (->> @*requests (filter #(= "GET" (first %))) (map #(nth % 2)) distinct) => ["\"v1\""]
+        (reset! *requests [])
+        (seq (is->bytes (from url {:offset 10 :length 20})))     => (seq (->> bs (drop 10) (take 20)))
+        (map #(nth % 2) @*requests)                              => [nil] ; no HEAD, so no validator
+        (finally (.stop s 0))))
+
+    (let [s   (->server bs true *requests {:etag "\"v1\"" :get-etag "\"v2\""})
+          url (url-of s "/data.bin")]
+      (try
+        (is->bytes (from url {:parallelism 4 :chunk-size 10000}))  => (throws Exception #"changed\?")
+        (finally (.stop s 0))))
+
+    (let [s   (->server bs true *requests {:range-from-0? true})
+          url (url-of s "/data.bin")]
+      (try
+        (is->bytes (from url {:parallelism 4 :chunk-size 10000}))  => (throws Exception #"Expected a range starting at 10000")
+        (is->bytes (from url {:offset 10 :length 20}))             => (throws Exception #"Expected a range starting at 10")
+        (finally (.stop s 0))))))
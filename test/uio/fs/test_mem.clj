@@ -50,3 +50,56 @@
 
   (mem/reset))
 
+
+(facts "Mem reads ranges"
+  (mem/reset)
+
+  (spit (to "mem:///a.txt") "0123456789")
+
+  (slurp (from "mem:///a.txt" {:offset 3}))           => "3456789"
+  (slurp (from "mem:///a.txt" {:offset 3 :length 4})) => "3456"
+  (slurp (from "mem:///a.txt" {:offset 8 :length 4})) => "89"
+  (slurp (from "mem:///a.txt" {:offset 20}))          => ""
+  (from "mem:///a.txt" {:unknown 1})                  => (throws Exception)
+
+  (mem/reset))
+
+(facts "Mem lists only entries under the directory, skipping over subdirectories"
+  (mem/reset)
+
+  (doseq [i (range 1000)]
+    (spit (to (str "mem:///a/b/" i ".txt")) "x"))
+  (spit (to "mem:///a/c.txt")  "y")
+  (spit (to "mem:///a0.txt")   "z")
+  (spit (to "mem:///ab/c.txt") "z")
+
+  (ls "mem:///a")                      => [{:url "mem:///a/b/"    :dir  true}
+                                           {:url "mem:///a/c.txt" :size 1}]
+  (count (ls "mem:///a" {:recurse true})) => 1002
+  (count (ls "mem:///a/b/"))           => 1000
+
+  (mem/reset))
+
+(facts "Mem deletes least recently used files over :mem.max-size, and stores files off heap with :mem.direct"
+  (mem/reset)
+
+  (binding [*config* {:mem.max-size 10}]
+    (spit (to "mem:///1.txt") "1234")
+    (spit (to "mem:///2.txt") "1234")
+    (slurp (from "mem:///1.txt"))                                  ; 2.txt is the least recently used now
+    (spit (to "mem:///3.txt") "1234")
+
+    (map :url (ls "mem:///")) => ["mem:///1.txt" "mem:///3.txt"]
+
+    (spit (to "mem:///4.txt") "12345678901234")                    ; a file over the budget is kept alone
+    (map :url (ls "mem:///")) => ["mem:///4.txt"])
+
+  (binding [*config* {:mem.direct true}]
+    (spit (to "mem:///d.txt") "0123456789")
+    (slurp (from "mem:///d.txt" {:offset 2 :length 3})) => "234"
+    (size "mem:///d.txt")                               => 10)
+
+  (delete "mem:///d.txt")
+  (exists? "mem:///d.txt") => false
+
+  (mem/reset))
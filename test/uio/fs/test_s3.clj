@@ -5,4 +5,162 @@
 
 (facts "path-no-slash works"
   (path-no-slash "foo://user@host:8080/some-dir/file.txt?arg=value")
-  => "some-dir/file.txt")
\ No newline at end of file
+  => "some-dir/file.txt")
+
+(facts "delete-many and delete-tree send up to 1000 keys per DeleteObjects request"
+  (let [*requests (atom [])
+        client    (proxy [com.amazonaws.services.s3.AmazonS3Client] []
+                    (deleteObjects [^com.amazonaws.services.s3.model.DeleteObjectsRequest r]
+                      (swap! *requests conj [(.getBucketName r) (count (.getKeys r)) (.getKey (first (.getKeys r)))])
+                      nil))]
+    (with-redefs [lease-s3   (fn [_] client)
+                  release-s3 (fn [_ _] nil)
+                  ls         (fn [url & _] (for [i (range 2500)] {:url (str url "k" i) :size 1}))]
+      (binding [*config* {"s3://" {:access "a" :secret "s"}}]
+        (delete-many ["s3://b1/x" "s3://b2/y" "s3://b1/z"] {:parallelism 1})
+        (set (map #(take 2 %) @*requests)) => #{["b1" 2] ["b2" 1]}
+
+        (reset! *requests [])
+        (delete-tree "s3://b1/dir" {:parallelism 2})
+        (sort (map second @*requests))     => [500 1000 1000]
+        (set (map first @*requests))       => #{"b1"}
+        (some #(= "dir/k0" (nth % 2)) @*requests) => true))))
+
+(defn- md5 ^bytes [^bytes bs]
+  (.digest (java.security.MessageDigest/getInstance "MD5") bs))
+
+(defn- hex [^bytes bs]
+  (.toLowerCase (javax.xml.bind.DatatypeConverter/printHexBinary bs)))
+
+; Records uploaded parts as {part-number bytes}, failing the upload of part `fail-part` (if any) after a while,
+; so the failure is seen by `close`, not `write`
+(defn- ->upload-client [*parts *aborts fail-part]
+  (proxy [com.amazonaws.services.s3.AmazonS3Client] []
+    (initiateMultipartUpload [^com.amazonaws.services.s3.model.InitiateMultipartUploadRequest r]
+      (doto (com.amazonaws.services.s3.model.InitiateMultipartUploadResult.)
+            (.setBucketName (.getBucketName r))
+            (.setKey (.getKey r))
+            (.setUploadId "upload-1")))
+    (uploadPart [^com.amazonaws.services.s3.model.UploadPartRequest r]
+      (let [bs (is->bytes (.getInputStream r))]
+        (when (= fail-part (.getPartNumber r))
+          (Thread/sleep 200)
+          (throw (RuntimeException. "Part upload failed")))
+        (swap! *parts assoc (.getPartNumber r) bs)
+        (doto (com.amazonaws.services.s3.model.UploadPartResult.)
+              (.setPartNumber (.getPartNumber r))
+              (.setETag (hex (md5 bs))))))
+    (completeMultipartUpload [^com.amazonaws.services.s3.model.CompleteMultipartUploadRequest r]
+      (let [tags (.getPartETags r)]
+        (swap! *parts assoc :completed (map #(vector (.getPartNumber %) (.getETag %)) tags))
+        (doto (com.amazonaws.services.s3.model.CompleteMultipartUploadResult.)
+              (.setETag (str (hex (md5 (byte-array (mapcat #(md5 (@*parts (.getPartNumber %))) tags))))
+                             "-" (count tags))))))
+    (abortMultipartUpload [^com.amazonaws.services.s3.model.AbortMultipartUploadRequest r]
+      (swap! *aborts inc))))
+
+(facts "S3OutputStream uploads parts concurrently, in order, and aborts once on failure"
+  (let [part-size uio.fs.S3$S3OutputStream/MIN_PART_SIZE
+        bs        (byte-array (map unchecked-byte (range (+ (* 3 part-size) 1000))))
+        *parts    (atom {})
+        *aborts   (atom 0)]
+    (with-open [os (uio.fs.S3$S3OutputStream. (->upload-client *parts *aborts nil) "b" "k" nil part-size 3)]
+      (.write os bs))
+    (map first (:completed @*parts))                      => [1 2 3 4]
+    (map second (:completed @*parts))                     => (map #(hex (md5 (@*parts %))) [1 2 3 4])
+    (seq (byte-array (mapcat @*parts [1 2 3 4])))         => (seq bs)
+    @*aborts                                              => 0
+
+    (reset! *parts {})
+    (let [os (uio.fs.S3$S3OutputStream. (->upload-client *parts *aborts 2) "b" "k" nil part-size 3)]
+      (.write os bs)
+      (.close os)                                         => (throws java.io.IOException "Part upload failed")
+      (.close os)
+      @*aborts                                            => 1
+      (:completed @*parts)                                => nil)))
+
+(facts "copy-multipart copies ranges of parts, keeps metadata and aborts on failure"
+  (let [*requests (atom [])
+        ->client  (fn [fail-part]
+                    (proxy [com.amazonaws.services.s3.AmazonS3Client] []
+                      (initiateMultipartUpload [^com.amazonaws.services.s3.model.InitiateMultipartUploadRequest r]
+                        (let [md (.getObjectMetadata r)]
+                          (swap! *requests conj [:initiate (.getContentType md) (into {} (.getUserMetadata md))]))
+                        (doto (com.amazonaws.services.s3.model.InitiateMultipartUploadResult.)
+                              (.setUploadId "upload-1")))
+                      (copyPart [^com.amazonaws.services.s3.model.CopyPartRequest r]
+                        (if (= fail-part (.getPartNumber r))
+                          (throw (RuntimeException. "Part copy failed")))
+                        (swap! *requests conj [:part (.getPartNumber r) (.getFirstByte r) (.getLastByte r)])
+                        (doto (com.amazonaws.services.s3.model.CopyPartResult.)
+                              (.setPartNumber (.getPartNumber r))
+                              (.setETag (str "etag-" (.getPartNumber r)))))
+                      (completeMultipartUpload [^com.amazonaws.services.s3.model.CompleteMultipartUploadRequest r]
+                        (swap! *requests conj [:complete (map #(.getETag %) (.getPartETags r))])
+                        nil)
+                      (abortMultipartUpload [_]
+                        (swap! *requests conj [:abort]))))
+        size      (+ (* 2 copy-part-size) 100)
+        md        (doto (com.amazonaws.services.s3.model.ObjectMetadata.)
+                        (.setContentLength size)
+                        (.setContentType "text/csv")
+                        (.setUserMetadata {"owner" "joe"})
+                        (.setHeader "ETag" "abc"))]
+    (copy-multipart (->client nil) "sb" "sk" "db" "dk" md)
+    (first @*requests)                                    => [:initiate "text/csv" {"owner" "joe"}]
+    (sort (filter #(= :part (first %)) @*requests))       => [[:part 1 0 (dec copy-part-size)]
+                                                              [:part 2 copy-part-size (dec (* 2 copy-part-size))]
+                                                              [:part 3 (* 2 copy-part-size) (dec size)]]
+    (last @*requests)                                     => [:complete ["etag-1" "etag-2" "etag-3"]]
+
+    (reset! *requests [])
+    (copy-multipart (->client 2) "sb" "sk" "db" "dk" md)  => (throws Exception #"Part copy failed")
+    (count (filter #(= [:abort] %) @*requests))           => 1
+    (some #(= :complete (first %)) @*requests)            => nil))
+
+; Answers S3 multipart copy requests with canned XML, recording [method path+query headers]
+(defn- ->s3-server [*requests]
+  (doto (com.sun.net.httpserver.HttpServer/create (java.net.InetSocketAddress. "127.0.0.1" 0) 0)
+        (.createContext "/" (reify com.sun.net.httpserver.HttpHandler
+                              (handle [_ e]
+                                (let [q    (.getRawQuery (.getRequestURI e))
+                                      body (cond (= "uploads" q)
+                                                 "<InitiateMultipartUploadResult><Bucket>db</Bucket><Key>dk</Key><UploadId>u1</UploadId></InitiateMultipartUploadResult>"
+
+                                                 (= "PUT" (.getRequestMethod e))
+                                                 "<CopyPartResult><LastModified>2020-01-01T00:00:00.000Z</LastModified><ETag>\"e\"</ETag></CopyPartResult>"
+
+                                                 :else
+                                                 "<CompleteMultipartUploadResult><Bucket>db</Bucket><Key>dk</Key><ETag>\"e-3\"</ETag></CompleteMultipartUploadResult>")
+                                      bs   (.getBytes ^String body "UTF-8")]
+                                  (swap! *requests conj [(.getRequestMethod e) (str (.getPath (.getRequestURI e)) "?" q)
+                                                         (into {} (map (fn [[k v]] [(.toLowerCase ^String k) (first v)])
+                                                                       (.getRequestHeaders e)))])
+                                  (.close (.getRequestBody e))
+                                  (.sendResponseHeaders e 200 (alength bs))
+                                  (.write (.getResponseBody e) bs)
+                                  (.close e)))))
+        (.setExecutor (java.util.concurrent.Executors/newFixedThreadPool 4 (->daemon-thread-factory "test-s3-server")))
+        (.start)))
+
+(facts "copy-multipart sends only the set headers of the source through the SDK"
+  (let [*requests (atom [])
+        s         (->s3-server *requests)
+        c         (doto (com.amazonaws.services.s3.AmazonS3Client. (com.amazonaws.auth.BasicAWSCredentials. "a" "s"))
+                        (.setEndpoint (str "http://127.0.0.1:" (.getPort (.getAddress s))))
+                        (.setS3ClientOptions (-> (com.amazonaws.services.s3.S3ClientOptions/builder)
+                                                 (.setPathStyleAccess true)
+                                                 (.build))))
+        md        (doto (com.amazonaws.services.s3.model.ObjectMetadata.)   ; no Content-Encoding, Cache-Control & co.
+                        (.setContentLength (+ (* 2 copy-part-size) 100))
+                        (.setContentType "text/csv")
+                        (.setUserMetadata {"owner" "joe"}))]
+    (try
+      (copy-multipart c "sb" "sk" "db" "dk" md)
+      (let [[method path headers] (first @*requests)]
+        [method path]                                     => ["POST" "/db/dk?uploads"]
+        (headers "content-type")                          => "text/csv"
+        (headers "x-amz-meta-owner")                      => "joe"
+        (headers "content-encoding")                      => nil)
+      (count (filter #(= "PUT" (first %)) @*requests))    => 3
+      (finally (.stop s 0)))))
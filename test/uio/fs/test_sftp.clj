@@ -23,3 +23,28 @@
                     "bin:x:2:"])) => {0 "root"
                                       1 "daemon"
                                       2 "bin"})
+
+(facts "with-channels takes channels of a host at once, and waiting for a channel times out"
+  (let [new-channel #(.newInstance (doto (.getDeclaredConstructor com.jcraft.jsch.ChannelSftp (make-array Class 0))
+                                         (.setAccessible true))
+                                   (object-array 0))]
+    (with-redefs [->session                (fn [_] nil)
+                  ->channel                (fn [_] (new-channel))
+                  max-sessions-per-host    1
+                  max-channels-per-session 2
+                  channel-wait-ms          200
+                  uio.impl/*config*        {"sftp://" {:user "u" :pass "p" :known-hosts ""}}]
+      ; parallelism above the cap: taking channels one by one, each thread would hold one and wait for another
+      (->> (for [_ (range 8)]
+             (future (with-channels ["sftp://host-a/a.txt" "sftp://host-a/b.txt"]
+                                    (fn [cs] (Thread/sleep 20) (count cs)))))
+           (doall)
+           (map #(deref % 10000 :timeout))) => (repeat 8 2)
+
+      (let [a (lease-channel "sftp://host-b/a.txt")
+            b (lease-channel "sftp://host-b/b.txt")]
+        (try (lease-channel "sftp://host-b/c.txt") => (throws Exception #"Couldn't get 1 SFTP channel")
+             (with-channels ["sftp://host-b/a.txt"] count) => (throws Exception #"Couldn't get 1 SFTP channel")
+             (finally (release-channel a true)
+                      (release-channel b true))))
+      (with-channels ["sftp://host-b/a.txt" "sftp://host-b/b.txt"] count) => 2)))
@@ -1,11 +1,94 @@
 (ns uio.test-java-api
     (:require [midje.sweet :refer :all])
-    (:import [uio Uio]
-             [java.nio.file Paths]))
+    (:import [uio Uio Uio$Entry Uio$Opts UioAsync]
+             [java.io InputStream IOException]
+             [java.nio.file Paths]
+             [java.util.concurrent ExecutionException]))
 
 (facts "Java API works"
     (spit  (Uio/to   (str (.toUri (Paths/get "target/temp.txt" (into-array String []))))) "test data")
     (slurp (Uio/from (str (.toUri (Paths/get "target/temp.txt" (into-array String [])))))) => "test data"
 
     ; TODO add tests for other methods
-    )
\ No newline at end of file
+    )
+(facts "Java listing API works"
+    (spit (Uio/to "mem:///java-api/a.txt")   "a")
+    (spit (Uio/to "mem:///java-api/b/c.txt") "cc")
+
+    (map str (Uio/ls "mem:///java-api/" Uio$Opts/RECURSE)) => ["mem:///java-api/"
+                                                              "mem:///java-api/a.txt 1"
+                                                              "mem:///java-api/b/"
+                                                              "mem:///java-api/b/c.txt 2"]
+
+    (with-open [s (Uio/list "mem:///java-api/" Uio$Opts/RECURSE)]
+      (->> (.iterator s)
+           (iterator-seq)
+           (map (juxt #(.getUrl %) #(.isDir %) #(.getSize %)))))  => [["mem:///java-api/"        true  -1]
+                                                                      ["mem:///java-api/a.txt"   false  1]
+                                                                      ["mem:///java-api/b/"      true  -1]
+                                                                      ["mem:///java-api/b/c.txt" false  2]]
+
+    (let [e (Uio$Entry/of {:url "file:///a.txt" :size 3 :owner "joe"})]
+      [(.getUrl e) (.getSize e) (into {} (.getExtra e)) (.get (.getExtra e) "owner") (.get (.getExtra e) "size")])
+    => ["file:///a.txt" 3 {"owner" "joe"} "joe" nil]
+
+    (let [*closed (atom 0)
+          s       (with-redefs [uio.uio/ls (fn [& _] (uio.impl/close-when-realized-or-finalized #(swap! *closed inc)
+                                                                                                 [{:url "mem:///x"} {:url "mem:///y"}]))]
+                    (Uio/list "mem:///"))]
+      (.getUrl (first (iterator-seq (.iterator s))))  => "mem:///x"
+      (.close s)
+      @*closed                                         => 1))
+
+(facts "Java async API works"
+  (with-open [a (UioAsync.)]
+    (spit (Uio/to "mem:///java-async/a.txt") "a")
+    (spit (Uio/to "mem:///java-async/b.txt") "bb")
+
+    (.get (.size   a "mem:///java-async/b.txt"))                             => 2
+    (.get (.exists a "mem:///java-async/c.txt"))                             => false
+    (into {} (.get (.sizeMany a ["mem:///java-async/a.txt"
+                                 "mem:///java-async/b.txt"])))               => {"mem:///java-async/a.txt" 1
+                                                                                 "mem:///java-async/b.txt" 2}
+    (.get (.copy a "mem:///java-async/a.txt" "mem:///java-async/c.txt"))
+    (slurp (.get (.from a "mem:///java-async/c.txt")))                       => "a"
+
+    (.get (.size a "mem:///java-async/nope.txt"))                            => (throws ExecutionException)
+
+    ; bindings of the caller are seen by the call
+    (binding [uio.impl/*config* {:k 1}]
+      (.get (.submit a "mem:///" #(uio.impl/*config* :k))))                  => 1)
+
+  (with-open [a (.limit (UioAsync.) "mem" 3)]
+    (let [*n   (atom 0)
+          *max (atom 0)
+          fs   (doall (for [_ (range 20)]
+                        (.submit a "mem:///" #(let [n (swap! *n inc)]
+                                                (swap! *max max n)
+                                                (Thread/sleep 10)
+                                                (swap! *n dec)))))]
+      (run! #(.get %) fs)
+      @*max => 3)))
+
+(defmethod uio.impl/from :blocking [url & args]
+  (let [reading (:reading (uio.impl/*config* :blocking))
+        closed  (promise)
+        read    (fn [] (deliver reading true)
+                       @closed
+                       (throw (IOException. "Closed")))]
+    (uio.impl/wrap-is #(proxy [InputStream] []
+                         (read ([]       (read))
+                               ([_ _ _]  (read))))
+                      identity
+                      (fn [_] (deliver closed true)))))
+
+(facts "Java async API closes streams of cancelled calls"
+  (with-open [a (UioAsync.)]
+    (let [reading (promise)
+          f       (binding [uio.impl/*config* {:blocking {:reading reading}}]
+                    (.copy a "blocking:///a.txt" "mem:///java-async/d.txt"))]
+      (deref reading 5000 false)                                             => true
+      (.cancel f true)                                                       => true
+      (.isCancelled f)                                                       => true
+      (Thread/sleep 200)                                                     ; copy fails, closing `to` (mem:// saves on close)
+      (.get (.size a "mem:///java-async/d.txt"))                             => 0)))
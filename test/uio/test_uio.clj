@@ -1,15 +1,30 @@
 (ns uio.test-uio
   (:require [uio.uio :refer :all]
-            [uio.impl :refer [ensure-not-ends-with-delimiter
+            [uio.fs.mem :as mem]
+            [uio.impl :refer [close-clients
+                              ensure-not-ends-with-delimiter
+                              etag->digest
+                              implementations
+                              lazy-method
+                              ->URI
                               creds-url->creds
+                              config->creds-index
                               intercalate-with-dirs
+                              lease-client
+                              release-client
+                              list-available-implementations
+                              list-tree
                               longest-matching-prefix
                               replace-path
                               scheme-k
+                              unchanged?
                               url->creds'
-                              url->ext+s->s]]
+                              url->ext+s->s
+                              with-client]]
             [midje.sweet :refer :all])
-  (:import (java.util.zip GZIPOutputStream)
+  (:import (java.lang.management ManagementFactory)
+           (java.util.zip GZIPOutputStream)
+           (javax.management ObjectName)
            (org.apache.commons.compress.compressors CompressorStreamFactory)))
 
 (facts "URL manipulation fns are working"
@@ -90,6 +105,27 @@
     (longest-matching-prefix prefixes "fs://user@host:port/path/to/file.txt") => "fs://user@host:port/path/to/file.txt"
     (longest-matching-prefix prefixes "unknownfs://host/path/to/file.txt")    => nil))
 
+(facts "URLs are parsed once"
+  (identical? (->URI "s3://bucket/a/b.txt") (->URI (str "s3://bucket/" "a/b.txt"))) => true
+  (scheme-k "s3://bucket/a/b.txt")                                                  => :s3
+  (path     "s3://bucket/a/b.txt")                                                  => "/a/b.txt"
+  (->URI nil)                                                                       => (throws Exception))
+
+(facts "url->creds' follows changes of config"
+  (:access (url->creds' {"s3://"  {:access "a" :secret "a"}} {} "s3://bucket/file")) => "a"
+  (:access (url->creds' {"s3://b" {:access "b" :secret "b"}
+                         "s3://"  {:access "a" :secret "a"}} {} "s3://bucket/file")) => "b"
+  (:access (url->creds' {"s3://"  {:access "c" :secret "c"}} {} "s3://bucket/file")) => "c"
+
+  ; alternating configs keep their indexes
+  (let [a   {"s3://a" {:access "a"}}
+        b   {"s3://b" {:access "b"}}
+        ias (repeatedly 3 #(config->creds-index a))
+        ibs (repeatedly 3 #(config->creds-index b))]
+    (interleave ias ibs)                    => (interleave (repeat 3 (first ias)) (repeat 3 (first ibs)))
+    (config->creds-index a)                 => #(identical? (first ias) %)
+    ((config->creds-index b) "s3://b/file") => "s3://b"))
+
 (facts "creds-url->creds"
   (creds-url->creds "fs://host?user=joe&pass=secret")          => {"fs://host"          {:user "joe" :pass "secret"}}
   (creds-url->creds "fs://host/home/joe?user=joe&pass=secret") => {"fs://host/home/joe" {:user "joe" :pass "secret"}}
@@ -251,10 +287,75 @@
       (url->creds' {} e09 "s3://")   => (cr-e09 "s3://")
       (url->creds' {} e09 "sftp://") => (cr-e09 "sftp://")) ))
 
+(facts "Shared clients are reused and closed"
+  (let [*closed (atom [])
+        c       (lease-client ::test-client #(Object.) #(swap! *closed conj %))]
+
+    (with-client ::test-client #(Object.) #(swap! *closed conj %) identity) => (exactly c)
+    (lease-client ::failing-client #(throw (Exception. "boom")) identity)  => (throws Exception "boom")
+
+    (close-clients)
+    @*closed => [c]
+
+    ; a lease of a dropped entry doesn't count against a newer one, and its client is still closed
+    (let [c1      (lease-client ::test-client #(Object.) #(swap! *closed conj %))
+          _       (close-clients)
+          c2      (lease-client ::test-client #(Object.) #(swap! *closed conj %))
+          leases  #(:leases (@@#'uio.impl/*k->client ::test-client))
+          *built  (promise)
+          *c3     (future (lease-client ::slow-client #(deref *built) #(swap! *closed conj %)))]
+      (release-client ::test-client c1)
+      (leases)                                                    => 1
+      (release-client ::test-client c2)
+      (leases)                                                    => 0
+
+      (Thread/sleep 100)                                          ; leased, but not built yet
+      (reset! *closed [])
+      (close-clients)
+      (deliver *built (Object.))
+      @*closed                                                    => [c2]
+      (release-client ::slow-client @*c3)
+      @*closed                                                    => [c2 @*built])))
+
 (facts "In-memory implementation works"
   (spit  (to   "mem:///greeetings.txt") "hello") => nil
   (slurp (from "mem:///greeetings.txt"))         => "hello")
 
+(facts "copy-tree copies directories recursively and skips unchanged files"
+  (spit (to "mem:///copy-tree/src/a.txt")     "a")
+  (spit (to "mem:///copy-tree/src/d/b.txt")   "bb")
+  (spit (to "mem:///copy-tree/src/d/e/c.txt") "ccc")
+
+  (select-keys (copy-tree "mem:///copy-tree/src" "mem:///copy-tree/dst/")
+               [:files :bytes :dirs :skipped :failed])          => {:files 3 :bytes 6 :dirs 2 :skipped 0 :failed 0}
+
+  (map :url (ls "mem:///copy-tree/dst/" {:recurse true}))       => ["mem:///copy-tree/dst/"
+                                                                    "mem:///copy-tree/dst/a.txt"
+                                                                    "mem:///copy-tree/dst/d/"
+                                                                    "mem:///copy-tree/dst/d/b.txt"
+                                                                    "mem:///copy-tree/dst/d/e/"
+                                                                    "mem:///copy-tree/dst/d/e/c.txt"]
+  (slurp (from "mem:///copy-tree/dst/d/e/c.txt"))              => "ccc"
+
+  (spit (to "mem:///copy-tree/src/d/b.txt") "changed")
+  (let [*progress (atom [])]
+    (select-keys (copy-tree "mem:///copy-tree/src" "mem:///copy-tree/dst" {:skip-unchanged true
+                                                                           :parallelism    2
+                                                                           :progress       #(swap! *progress conj %)})
+                 [:files :bytes :skipped :failed])              => {:files 1 :bytes 7 :skipped 2 :failed 0}
+    (count @*progress)                                          => 5)
+  (slurp (from "mem:///copy-tree/dst/d/b.txt"))                => "changed"
+
+  (copy-tree "mem:///copy-tree/src" "mem:///copy-tree/dst" {:unknown 1}) => (throws Exception)
+
+  (unchanged? {:size 1 :etag "a"}    {:size 1 :etag "a"})      => true
+  (unchanged? {:size 1 :etag "a"}    {:size 1 :etag "b"})      => false
+  (unchanged? {:size 1 :etag "a-2"}  {:size 1 :etag "b-3"})    => true
+  (unchanged? {:size 1 :modified (java.util.Date. 2)}
+              {:size 1 :modified (java.util.Date. 1)})         => false
+  (unchanged? {:size 1}              {:size 2})                => false
+  (unchanged? {:size 1}              nil)                      => false)
+
 (facts "Deducing of (de)compression codecs works, even for chained ones"
   (map first (url->ext+s->s ext->is->is "hdfs:///far-away/and/well-archived.xz.bz2.gz")) => [:gz :bz2 :xz]
   (map first (url->ext+s->s ext->os->os "sftp:///far-away/and/well-archived.xz.bz2.gz")) => [:gz :bz2 :xz]
@@ -341,6 +442,28 @@
                                                          {:url "456/5.txt"}
                                                          {:url "789.txt"}])
 
+(facts "implementations are loaded on first use"
+  (->> (:fs implementations)     keys (remove #(lazy-method :fs     from        %))) => []
+  (->> (:codecs implementations) keys (remove #(lazy-method :codecs ext->is->is %))) => []
+
+  (->> (list-available-implementations) :fs (filter #{:cache+s3 :file :hdfs :s3 :sftp})) => [:cache+s3 :file :hdfs :s3 :sftp]
+
+  (with-redefs [implementations (assoc-in implementations [:fs :nope] ['uio.fs.nope "com.example.Missing"])]
+    (from "nope:///file.txt")                                     => (throws Exception #"com.example.Missing")
+    (->> (list-available-implementations) :fs (filter #{:nope}))  => [])
+
+  ; an implementation falling back to the default `copy` gets a copy via streams, not itself
+  (mem/reset)
+  (defmethod from :foo [url & args] (from (str "mem" (subs url 3))))
+  (defmethod to   :foo [url & args] (to   (str "mem" (subs url 3))))
+  (defmethod copy :foo [a b & args] ((get-method copy :default) a b))
+  (spit (to "mem:///foo/a.txt") "hello")
+  (copy "foo:///foo/a.txt" "foo:///foo/b.txt")
+  (slurp (from "mem:///foo/b.txt"))                               => "hello"
+  (doseq [mf [from to copy]]
+    (remove-method mf :foo))
+  (mem/reset))
+
 (facts "encode + decode works"
   (let [s "hello world"]
     (->> s (.getBytes) (encode :gz)  (decode :gz)  (String.) ) => s
@@ -350,3 +473,157 @@
     ; check built-in filters
     (map #(count (encode % (.getBytes s)))
          [:gz :bz2 :xz]) => [31 48 68]))
+
+(facts "zst, lz4 and snappy encode + decode works"
+  (let [s (apply str (repeat 1000 "hello world "))]
+    (doseq [ext [:zst :lz4 :snappy]]
+      (->> s (.getBytes) (encode ext) (decode ext) (String.)) => s
+      (count (encode ext (.getBytes s)))                    => #(< % 1000))
+
+    (String. (with {:zst.level 19 :zst.buffer-size 7} (decode :zst (encode :zst (.getBytes s))))) => s
+    (String. (with {:lz4.level 9 :lz4.block-size (* 64 1024)} (decode :lz4 (encode :lz4 (.getBytes s))))) => s
+    (String. (with {:snappy.block-size 100} (decode :snappy (encode :snappy (.getBytes s)))))          => s
+
+    (with {:zst.level 1000}      (encode :zst (.getBytes s))) => (throws Exception)
+    (with {:lz4.block-size 1000} (encode :lz4 (.getBytes s))) => (throws Exception)
+
+    (:codecs (list-available-implementations)) => [:bz2 :gz :lz4 :snappy :xz :zst]))
+
+(facts "list-tree throws exceptions of list-dir to the consumer, with or without parallelism"
+  (let [list-dir (fn [dir] (case dir
+                             "r/"   [[{:url "r/a/"} "r/a/"] [{:url "r/b/"} "r/b/"]]
+                             "r/a/" [[{:url "r/a/x"} nil]]
+                             "r/b/" (throw (Exception. "Can't list r/b/"))
+                             (throw (Exception. (str "Can't list " dir)))))]
+    (doseq [p [1 4]]
+      (take 3 (list-tree list-dir "r/" true p))                        => [{:url "r/a/"} {:url "r/a/x"} {:url "r/b/"}]
+      (doall (list-tree list-dir "r/" true p))                         => (throws Exception "Can't list r/b/")
+      (doall (list-tree list-dir "nope/" true p))                      => (throws Exception "Can't list nope/"))
+    (list-tree list-dir "nope/" false 1)                               => (throws Exception "Can't list nope/")))
+
+(facts "gz and bz2 encode blocks concurrently into concatenated members"
+  (let [s  "hello parallel world"
+        bs (.getBytes s)]
+    (doseq [ext [:gz :bz2]
+            :let [threads    (keyword (str (name ext) ".threads"))
+                  block-size (keyword (str (name ext) ".block-size"))
+                  encoded    (with {threads 4 block-size 6} (encode ext bs))]]
+      (count encoded)                                                 => #(> % (count (with {threads 1} (encode ext bs))))
+      (String. (with {threads 1} (decode ext encoded)))               => s
+      (String. (with {threads 4 block-size 6} (decode ext encoded)))  => s      ; members over 2 * block size: sequential
+      (String. (with {threads 4 block-size 99} (decode ext encoded))) => s
+      (seq (with {threads 4} (encode ext bs)))                        => (seq (with {threads 1} (encode ext bs)))
+      (seq (with {block-size 6} (encode ext bs)))                     => (seq (with {threads 1} (encode ext bs))) ; 1 thread by default
+      (with {threads 0} (encode ext bs))                              => (throws Exception)))
+
+  ; network streams often return 0 from `available()`, after which `GZIPInputStream` stops at the end of a member
+  (let [bs      (.getBytes (apply str (range 100000)))
+        encoded (with {:gz.threads 4 :gz.block-size 10000} (encode :gz bs))
+        is      (proxy [java.io.FilterInputStream] [(java.io.ByteArrayInputStream. encoded)]
+                  (available [] 0))]
+    (seq (is->bytes ((ext->is->is :gz) is)))                          => (seq bs)))
+
+(facts "metrics record calls, errors, latencies and bytes by scheme and host"
+  (reset-metrics)
+  (enable-metrics {:jmx true})
+  (try
+    (spit (to "mem:///metrics/a.txt") "hello")
+    (slurp (from "mem:///metrics/a.txt"))     => "hello"
+    (size "mem:///metrics/a.txt")             => 5
+    (size "mem:///metrics/missing.txt")       => (throws Exception)
+
+    (let [{:keys [bytes-read bytes-written open-input-streams open-output-streams ops]} (get (metrics) "mem:///")]
+      [bytes-read bytes-written]                => [5 5]
+      [open-input-streams open-output-streams]  => [0 0]
+      (keys ops)                                => [:from :size :to]
+      (-> ops :size (select-keys [:calls :errors :in-flight])) => {:calls 2 :errors 1 :in-flight 0}
+      (-> ops :from :latency-ms :max)           => pos?)
+
+    (.isRegistered (ManagementFactory/getPlatformMBeanServer)
+                   (ObjectName. "uio:type=Op,host=\"mem:///\",name=size")) => true
+
+    (disable-metrics)
+    (size "mem:///metrics/a.txt")             => 5
+    (-> (metrics) (get "mem:///") :ops :size :calls) => 2
+
+    (finally (disable-metrics)
+             (reset-metrics))))
+
+(facts "checksums are computed in one pass, or taken from S3 ETags"
+  (mem/reset)
+  (spit (to "mem:///c/a.txt")   "hello world")
+  (spit (to "mem:///c/b/c.txt") "")
+
+  (with-open [is (->multi-digestible ["MD5" "SHA-256" "S3-ETAG"] (bytes->is (.getBytes "hello world")))]
+    (transfer is (->nil-os))
+    (close-and-digests is)) => {"MD5"     "5eb63bbbe01eeed093cb22bb8f5acdc3"
+                                "SHA-256" "b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9"
+                                "S3-ETAG" "241d8a27c836427bd7f04461b60e7359-1"}
+
+  (checksum "mem:///c/a.txt" {:algorithms ["md5" "S3-ETAG"]})
+  => {:url "mem:///c/a.txt" :size 11 :md5 "5eb63bbbe01eeed093cb22bb8f5acdc3" :s3-etag "241d8a27c836427bd7f04461b60e7359-1"}
+
+  (checksum-tree "mem:///c/" {:parallelism 2})
+  => [{:url "mem:///c/a.txt"   :size 11 :md5 "5eb63bbbe01eeed093cb22bb8f5acdc3"}
+      {:url "mem:///c/b/c.txt" :size 0  :md5 "d41d8cd98f00b204e9800998ecf8427e"}]
+
+  (etag->digest "\"5eb63bbbe01eeed093cb22bb8f5acdc3\""   11       "MD5"     (* 5 1024 1024)) => "5eb63bbbe01eeed093cb22bb8f5acdc3"
+  (etag->digest "5eb63bbbe01eeed093cb22bb8f5acdc3"       11       "S3-ETAG" (* 5 1024 1024)) => nil
+  (etag->digest "241d8a27c836427bd7f04461b60e7359-3"     12000000 "S3-ETAG" (* 5 1024 1024)) => "241d8a27c836427bd7f04461b60e7359-3"
+  (etag->digest "241d8a27c836427bd7f04461b60e7359-2"     12000000 "S3-ETAG" (* 5 1024 1024)) => nil
+  (etag->digest "241d8a27c836427bd7f04461b60e7359-3"     12000000 "MD5"     (* 5 1024 1024)) => nil
+  (etag->digest nil                                      11       "MD5"     (* 5 1024 1024)) => nil
+
+  (mem/reset))
+
+; Reads mem:///<path> of flaky:///<path>, failing after `fail-after` bytes of each of the first `*failures` opens
+(defn- flaky-from [url fail-after *failures opts]
+  (let [is    (from (str "mem://" (subs url (count "flaky://"))) opts)
+        fail? (<= 0 (swap! *failures dec))
+        *left (atom fail-after)]
+    (proxy [java.io.InputStream] []
+      (read
+        ([] (throw (UnsupportedOperationException.)))
+        ([bs off len]
+         (if (and fail? (not (pos? @*left)))
+           (throw (java.io.IOException. "Connection reset")))
+         (let [n (.read is bs off (if fail? (min len @*left) len))]
+           (swap! *left - (max n 0))
+           n)))
+      (close [] (.close is)))))
+
+(facts "resumable-from reopens the source at the current offset"
+  (mem/reset)
+  (let [bs        (byte-array (map unchecked-byte (range 10000)))
+        *failures (atom 0)
+        *opens    (atom [])]
+    (with-open [os (to "mem:///r/a.bin")] (.write os bs))
+
+    (defmethod from :flaky [url & args] (swap! *opens conj (select-keys (first args) [:offset :length]))
+                                        (flaky-from url 3000 *failures (first args)))
+    (defmethod stat :flaky [url & args] (stat (str "mem://" (subs url (count "flaky://")))))
+
+    (with {:resume.backoff-ms 1}
+      (reset! *failures 3)
+      (seq (is->bytes (resumable-from "flaky:///r/a.bin")))                           => (seq bs)
+      @*opens => [{:offset 0 :length 10000} {:offset 3000 :length 7000} {:offset 6000 :length 4000} {:offset 9000 :length 1000}]
+
+      (reset! *failures 2)
+      (reset! *opens [])
+      (seq (is->bytes (resumable-from "flaky:///r/a.bin" {:offset 500 :length 5000}))) => (seq (->> bs (drop 500) (take 5000)))
+      @*opens => [{:offset 500 :length 5000} {:offset 3500 :length 2000}]
+
+      (reset! *failures 10)
+      (with {:resume.retries 2}
+        (is->bytes (resumable-from "flaky:///r/a.bin")))                               => (throws java.io.IOException "Connection reset")
+
+      (reset! *failures 10)
+      (with {:resume.retries 1}
+        (with-open [is (from* "flaky:///r/a.bin")]
+          (.read is (byte-array 3000))
+          (spit (to "mem:///r/a.bin") "changed")
+          (is->bytes is)))                                                               => (throws java.io.IOException #"changed"))
+
+    (remove-method from :flaky)
+    (remove-method stat :flaky))
+  (mem/reset))